@@ -0,0 +1,284 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking client for a Server running the DavidPaulProtocol.
+ *
+ * Every request returns a CompletableFuture which is completed with the
+ * server's response. Requests are written over a single connection in the
+ * order they are made, and since the server answers in the same order the
+ * responses are matched to requests first-in first-out.
+ *
+ * All socket I/O is done by a single background thread, so calling threads
+ * never block on the server. Futures are completed on that thread, so
+ * any callbacks attached to them should not block either.
+ *
+ * At most 'window' requests may be waiting for a response at once. When
+ * the window is full new requests fail immediately with a
+ * RejectedExecutionException, which the caller can use to slow down.
+ */
+public class AsyncClient implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A request waiting to be written, along with the future to
+     * complete when its response arrives.
+     */
+    private static class Request {
+        private final byte[] bytes;
+        private final CompletableFuture<String> response = new CompletableFuture<>();
+
+        private Request(String lines) {
+            this.bytes = lines.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final Semaphore window;
+    private final Thread ioThread;
+    private final ConcurrentLinkedQueue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean closed;
+
+    // only touched by the I/O thread
+    private final ArrayDeque<CompletableFuture<String>> inFlight = new ArrayDeque<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Connects to the server and starts the I/O thread.
+     * The CONNECT handshake is not performed - call connect() first.
+     * @param hostName -- the name of the host, e.g. localhost
+     * @param portNumber -- the port number the server is listening on
+     * @param window -- the maximum number of requests awaiting a response
+     * @throws IOException -- if the connection cannot be made
+     */
+    public AsyncClient(String hostName, int portNumber, int window) throws IOException {
+        if (window < 1) { throw new IllegalArgumentException("window must be at least 1"); }
+        this.window = new Semaphore(window);
+        this.channel = SocketChannel.open(new InetSocketAddress(hostName, portNumber));
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+        this.ioThread = new Thread(this::runLoop, "AsyncClient-" + hostName + ":" + portNumber);
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * Performs the CONNECT handshake.
+     * @param clientID -- the clientID to connect as
+     * @return -- completes with CONNECT: OK or CONNECT: ERROR
+     */
+    public CompletableFuture<String> connect(String clientID) {
+        return submit("CONNECT " + clientID + "\n");
+    }
+
+    /**
+     * @param key -- the key to look up
+     * @return -- completes with the stored value, or GET: ERROR
+     */
+    public CompletableFuture<String> get(String key) {
+        return submit("GET " + key + "\n");
+    }
+
+    /**
+     * Sends both lines of a PUT as a single request.
+     * @param key -- the key to store
+     * @param value -- the value to store, which cannot contain a newline
+     * @return -- completes with PUT: OK or PUT: ERROR
+     */
+    public CompletableFuture<String> put(String key, String value) {
+        if (value.indexOf('\n') >= 0) {
+            return failed(new IllegalArgumentException("value cannot contain a newline"));
+        }
+        return submit("PUT " + key + "\n" + value + "\n");
+    }
+
+    /**
+     * @param key -- the key to delete
+     * @return -- completes with DELETE: OK or DELETE: ERROR
+     */
+    public CompletableFuture<String> delete(String key) {
+        return submit("DELETE " + key + "\n");
+    }
+
+    /**
+     * Ends the session. The connection is closed once the server responds.
+     * @return -- completes with DISCONNECT: OK
+     */
+    public CompletableFuture<String> disconnect() {
+        return submit("DISCONNECT\n");
+    }
+
+    /**
+     * Closes the connection. Any requests still awaiting a response
+     * are failed with a ClosedChannelException.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a request for the I/O thread to write, provided there is
+     * room in the in-flight window.
+     */
+    private CompletableFuture<String> submit(String lines) {
+        if (closed) {
+            return failed(new ClosedChannelException());
+        }
+        if (!window.tryAcquire()) {
+            return failed(new RejectedExecutionException("in-flight window is full"));
+        }
+        Request request = new Request(lines);
+        submitted.add(request);
+        if (closed) {
+            // the I/O thread may have already exited without seeing this request
+            failSubmitted(new ClosedChannelException());
+            return request.response;
+        }
+        // only one wakeup is needed however many requests arrive before
+        // the I/O thread gets around to draining the queue
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return request.response;
+    }
+
+    private static CompletableFuture<String> failed(Throwable t) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+
+    /**
+     * The main loop of the I/O thread. Moves submitted requests into the
+     * write buffer, writes as much as the socket will take, and reads
+     * responses, until the client is closed or the connection fails.
+     */
+    private void runLoop() {
+        Throwable failure = new ClosedChannelException();
+        try {
+            SelectionKey key = channel.keyFor(selector);
+            while (!closed) {
+                selector.select();
+                selector.selectedKeys().clear();
+                wakeupPending.set(false);
+
+                fillWriteBuffer();
+                writeBuffer.flip();
+                channel.write(writeBuffer);
+                boolean moreToWrite = writeBuffer.hasRemaining();
+                writeBuffer.compact();
+                key.interestOps(moreToWrite || !submitted.isEmpty()
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+
+                if (!readResponses()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            closed = true;
+            failAll(failure);
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * Moves as many submitted requests as will fit into the write buffer.
+     * A request is in flight from the moment it is buffered, which keeps
+     * the order of the in-flight queue the same as the order on the wire.
+     */
+    private void fillWriteBuffer() {
+        Request request;
+        while ((request = submitted.peek()) != null) {
+            if (request.bytes.length > writeBuffer.remaining()) {
+                if (writeBuffer.position() > 0) {
+                    // wait for the buffer to drain before taking more
+                    return;
+                }
+                writeBuffer = ByteBuffer.allocateDirect(request.bytes.length);
+            }
+            submitted.poll();
+            writeBuffer.put(request.bytes);
+            inFlight.add(request.response);
+        }
+    }
+
+    /**
+     * Reads whatever is available from the socket and completes one
+     * in-flight request for each full line received.
+     * @return -- false if the server closed the connection
+     */
+    private boolean readResponses() throws IOException {
+        int n;
+        while ((n = channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b != '\n') {
+                    partialLine.write(b);
+                    continue;
+                }
+                String line = new String(partialLine.toByteArray(), StandardCharsets.US_ASCII);
+                partialLine.reset();
+                CompletableFuture<String> response = inFlight.poll();
+                if (response != null) {
+                    window.release();
+                    response.complete(line);
+                }
+            }
+            readBuffer.clear();
+        }
+        return n != -1;
+    }
+
+    private void failAll(Throwable failure) {
+        CompletableFuture<String> response;
+        while ((response = inFlight.poll()) != null) {
+            window.release();
+            response.completeExceptionally(failure);
+        }
+        failSubmitted(failure);
+    }
+
+    private void failSubmitted(Throwable failure) {
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            window.release();
+            request.response.completeExceptionally(failure);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * A blocking client for a Server running the DavidPaulProtocol in
+ * binary mode. Keys and values are raw bytes and may contain anything,
+ * including newlines.
+ *
+ * A client opened with openChecked asks the server for the checksum of
+ * its responses, see ChecksumOutputStream, and checks each response
+ * against the CHECKSUM frame which follows it before returning it.
+ */
+public class BinaryClient implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final BufferedOutputStream out;
+    private final byte[] header = new byte[FrameCodec.HEADER_LENGTH];
+    private int nextRequestId = 1;
+    // the checksum of each response, or null if the client did not ask for them
+    private final CRC32C crc;
+
+    private BinaryClient(Socket socket, InputStream in, boolean checked) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.crc = checked ? new CRC32C() : null;
+    }
+
+    /**
+     * Connects to the server and performs the CONNECT+BINARY handshake.
+     * @param hostName -- the name of the host, e.g. localhost
+     * @param portNumber -- the port number the server is listening on
+     * @param clientID -- the clientID to connect as
+     * @return -- the connected client
+     * @throws IOException -- if the connection failed or the server refused the clientID
+     */
+    public static BinaryClient open(String hostName, int portNumber, String clientID) throws IOException {
+        return open(hostName, portNumber, clientID, false);
+    }
+
+    /**
+     * Connects to the server with CONNECT+BINARY+CRC, so that every
+     * response is checked against its checksum.
+     * @param hostName -- the name of the host, e.g. localhost
+     * @param portNumber -- the port number the server is listening on
+     * @param clientID -- the clientID to connect as
+     * @return -- the connected client
+     * @throws IOException -- if the connection failed or the server refused the clientID
+     */
+    public static BinaryClient openChecked(String hostName, int portNumber, String clientID) throws IOException {
+        return open(hostName, portNumber, clientID, true);
+    }
+
+    private static BinaryClient open(String hostName, int portNumber, String clientID, boolean checked)
+            throws IOException {
+        Socket socket = new Socket(hostName, portNumber);
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream rawOut = socket.getOutputStream();
+            String connect = checked ? "CONNECT+BINARY+CRC " : "CONNECT+BINARY ";
+            rawOut.write((connect + clientID + "\n").getBytes(StandardCharsets.US_ASCII));
+            rawOut.flush();
+            // read the text response a byte at a time so nothing after it is buffered
+            InputStream rawIn = socket.getInputStream();
+            StringBuilder response = new StringBuilder();
+            int b;
+            while ((b = rawIn.read()) != -1 && b != '\n') {
+                response.append((char) b);
+            }
+            if (!response.toString().equals("CONNECT: OK")) {
+                throw new IOException("Server refused connection: " + response);
+            }
+            return new BinaryClient(socket, rawIn, checked);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return -- the stored value, or null if the key is not stored
+     */
+    public byte[] get(byte[] key) throws IOException {
+        ByteBuffer response = call(FrameCodec.OP_GET, key, new byte[0]);
+        if (FrameCodec.status(response, 0) != FrameCodec.STATUS_OK) {
+            return null;
+        }
+        byte[] value = new byte[response.remaining() - FrameCodec.HEADER_LENGTH];
+        response.get(FrameCodec.HEADER_LENGTH, value);
+        return value;
+    }
+
+    /**
+     * @return -- true if the value was stored
+     */
+    public boolean put(byte[] key, byte[] value) throws IOException {
+        return FrameCodec.status(call(FrameCodec.OP_PUT, key, value), 0) == FrameCodec.STATUS_OK;
+    }
+
+    /**
+     * @return -- true if the key existed and was deleted
+     */
+    public boolean delete(byte[] key) throws IOException {
+        return FrameCodec.status(call(FrameCodec.OP_DELETE, key, new byte[0]), 0) == FrameCodec.STATUS_OK;
+    }
+
+    /**
+     * Ends the session and closes the connection.
+     */
+    public void close() throws IOException {
+        try {
+            call(FrameCodec.OP_DISCONNECT, new byte[0], new byte[0]);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends one request frame and reads its response frame.
+     * @return -- the whole response frame, header included
+     */
+    private ByteBuffer call(byte opcode, byte[] key, byte[] value) throws IOException {
+        if (key.length > FrameCodec.MAX_KEY_LENGTH || value.length > FrameCodec.MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Key or value too long for a frame");
+        }
+        int requestId = nextRequestId++;
+        FrameCodec.writeHeader(out, header, opcode, (byte) 0, key.length, value.length, requestId);
+        out.write(key);
+        out.write(value);
+        out.flush();
+
+        in.readFully(header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int length = FrameCodec.frameLength(headerBuffer);
+        if (FrameCodec.requestId(headerBuffer, 0) != requestId) {
+            throw new IOException("Response does not match request " + requestId);
+        }
+        byte[] frame = new byte[length];
+        System.arraycopy(header, 0, frame, 0, FrameCodec.HEADER_LENGTH);
+        in.readFully(frame, FrameCodec.HEADER_LENGTH, length - FrameCodec.HEADER_LENGTH);
+        if (crc != null) {
+            checkSum(frame);
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * Reads the CHECKSUM frame the server sends after a response, as the
+     * client has nothing else outstanding, and compares it with the response.
+     */
+    private void checkSum(byte[] frame) throws IOException {
+        crc.reset();
+        crc.update(frame);
+        in.readFully(header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        if (FrameCodec.opcode(headerBuffer, 0) != FrameCodec.OP_CHECKSUM
+                || FrameCodec.frameLength(headerBuffer) != FrameCodec.HEADER_LENGTH) {
+            throw new IOException("Expected a checksum after the response");
+        }
+        int expected = FrameCodec.requestId(headerBuffer, 0);
+        if (expected != (int) crc.getValue()) {
+            throw new IOException(String.format("Response failed its checksum, %08x not %08x",
+                (int) crc.getValue(), expected));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A key made of raw bytes, as stored in ShardedStore.
+ *
+ * Keys arriving in binary frames are copied straight out of the
+ * receive buffer without being decoded into a String. Keys arriving
+ * as text are converted one byte per character, which is exact since
+ * the text protocol only carries ASCII.
+ *
+ * A ByteKey is immutable once constructed. The one exception is
+ * KeyProbe, a reusable key pointing into a receive buffer which is
+ * only used to look keys up, and which the storage replaces with a
+ * copy via retain() before keeping it.
+ */
+public class ByteKey implements Comparable<ByteKey> {
+
+    // only changed by KeyProbe
+    byte[] bytes;
+    int offset;
+    int length;
+    int hash;
+
+    /**
+     * @param bytes -- the key, which is not copied and must not be changed afterwards
+     */
+    public ByteKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.offset = 0;
+        this.length = bytes.length;
+        this.hash = hashOf(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return -- a key holding one byte per character of s
+     */
+    public static ByteKey of(String s) {
+        return new ByteKey(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * The same hash as Arrays.hashCode over the given range.
+     */
+    static int hashOf(byte[] b, int offset, int length) {
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + b[i];
+        }
+        return h;
+    }
+
+    /**
+     * @return -- the bytes of the key, which must not be changed
+     */
+    public byte[] bytes() {
+        if (offset == 0 && length == bytes.length) {
+            return bytes;
+        }
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return -- true if this key begins with all of the bytes of prefix
+     */
+    public boolean startsWith(ByteKey prefix) {
+        return length >= prefix.length && Arrays.equals(bytes, offset, offset + prefix.length,
+            prefix.bytes, prefix.offset, prefix.offset + prefix.length);
+    }
+
+    /**
+     * @return -- a key which is safe to keep: this key itself, since it is immutable
+     */
+    public ByteKey retain() {
+        return this;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) { return true; }
+        if (!(o instanceof ByteKey)) { return false; }
+        ByteKey other = (ByteKey) o;
+        return hash == other.hash && Arrays.equals(bytes, offset, offset + length,
+            other.bytes, other.offset, other.offset + other.length);
+    }
+
+    /**
+     * Orders keys by their unsigned bytes, so ASCII keys sort as their text does.
+     */
+    @Override
+    public int compareTo(ByteKey other) {
+        return Arrays.compareUnsigned(bytes, offset, offset + length,
+            other.bytes, other.offset, other.offset + other.length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
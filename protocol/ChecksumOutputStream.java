@@ -0,0 +1,96 @@
+package protocol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * Adds a CRC32C of everything a session sends, for clients which connect
+ * with CONNECT+CRC clientID, so they can detect responses damaged on the
+ * way.
+ *
+ * Bytes pass straight through until start is called. From then on,
+ * every flush which follows any bytes first writes a trailer holding the
+ * CRC32C of all the bytes since the previous trailer. The session only
+ * flushes between whole responses and pushes, so each trailer covers a
+ * run of them. In a text session the trailer is the line CRC followed by
+ * the checksum in eight hex digits, prefixed with the byte 0x1f; in a
+ * binary session it is a frame with the opcode OP_CHECKSUM, no key or
+ * value, and the checksum in place of the request id. A client keeps its
+ * own CRC32C of the bytes it reads, compares it with each trailer and
+ * starts again after it.
+ *
+ * The checksum uses java.util.zip.CRC32C, which the JIT compiles to the
+ * processor's CRC instructions where it has them.
+ */
+final class ChecksumOutputStream extends FilterOutputStream {
+
+    // the first byte of a trailer line; no response or push starts with it
+    static final char CHECKSUM_MARKER = '\u001f';
+    private static final byte[] TRAILER = (CHECKSUM_MARKER + "CRC ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final CRC32C crc = new CRC32C();
+    private final byte[] trailer = new byte[Math.max(TRAILER.length + 9, FrameCodec.HEADER_LENGTH)];
+    private boolean started;
+    private boolean binary;
+    // true if bytes have been written since the last trailer
+    private boolean pending;
+
+    /**
+     * @param out -- where the bytes and trailers are written
+     */
+    ChecksumOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Checksums everything written from now on.
+     * @param binary -- true to write the trailers as frames rather than lines
+     */
+    void start(boolean binary) {
+        this.started = true;
+        this.binary = binary;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (started) {
+            crc.update(b);
+            pending = true;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (started && len > 0) {
+            crc.update(b, off, len);
+            pending = true;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pending) {
+            writeTrailer((int) crc.getValue());
+            crc.reset();
+            pending = false;
+        }
+        out.flush();
+    }
+
+    private void writeTrailer(int checksum) throws IOException {
+        if (binary) {
+            FrameCodec.writeHeader(out, trailer, FrameCodec.OP_CHECKSUM, FrameCodec.STATUS_OK, 0, 0, checksum);
+            return;
+        }
+        System.arraycopy(TRAILER, 0, trailer, 0, TRAILER.length);
+        for (int i = 0; i < 8; i++) {
+            trailer[TRAILER.length + i] = HEX_DIGITS[(checksum >>> (28 - 4 * i)) & 0xf];
+        }
+        trailer[TRAILER.length + 8] = '\n';
+        out.write(trailer, 0, TRAILER.length + 9);
+    }
+}
@@ -1,6 +1,13 @@
 package protocol;
 import java.io.*;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
 
 /**
  * This class uses sockets to connect to the server process and then
@@ -8,12 +15,46 @@ import java.net.*;
  * communicate according to some pre-defined protocol. 
  * The main() method is configured to work with the Server class
  * using the DavidPaulProtocol.
+ * 
+ * A client may keep a near-cache of the values it reads with get(),
+ * see enableNearCache. The server pushes an invalidation whenever a 
+ * cached key changes, and the client applies every push it has received
+ * before answering from the cache, so a value is only stale for as long
+ * as its invalidation takes to arrive. The client's own writes drop the 
+ * keys they change straight away, so it always reads its own writes.
+ * 
+ * A client may also watch keys and subscribe to prefixes, and collect
+ * the changes the server pushes with pollPush.
+ *
+ * A client which connects with connectChecked checks every response
+ * against the checksums the server sends, see ChecksumOutputStream. A
+ * checksum covers every line before it, back to the previous checksum,
+ * so a damaged line is only reported once its checksum is read, when the
+ * next line after it is asked for, and may already have been returned.
  */
  public class Client {
 
+    // the commands which change the key given after them
+    private static final String[] WRITES = { "PUT ", "PUTC ", "DELETE ", "APPEND " };
+    // the commands which change the key given after them, followed by one more word
+    private static final String[] NUMBERED_WRITES = { "CAS ", "INCR ", "DECR " };
+    // the commands followed by a value line, which the server answers once
+    private static final String[] WITH_VALUE = { "PUT ", "CAS ", "APPEND " };
+    // the commands which send or are answered with more than one line, besides WITH_VALUE
+    private static final String[] MULTI_LINE = { "GETV ", "GETC ", "PUTC ", "MGET ", "MPUT ", "MDELETE ", "SCAN ", "STATS" };
+
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
+    // the values read with get() while tracking is on, least recently used first
+    private Map<String, String> nearCache;
+    private long nearCacheHits;
+    // the STORED, DELETED and DROPPED pushes received and not yet polled
+    private final Deque<String> pushes = new ArrayDeque<>();
+    // once connected with connectChecked, the lines are read from here instead of in
+    private InputStream checked;
+    private final CRC32C crc = new CRC32C();
+    private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
 
     /**
      * Constructor for client to connect to the Server on
@@ -40,6 +81,38 @@ import java.net.*;
         }             
     }
 
+    /**
+     * Constructor for a client around an already connected socket.
+     */
+    private Client(Socket socket) throws IOException {
+        this.socket = socket;
+        out = new PrintWriter(socket.getOutputStream(), true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    /**
+     * Connects to the Server on the specified port. Unlike the public
+     * constructor, errors are thrown back to the caller rather than
+     * ending the process, so this is the one to use from long running
+     * programs.
+     * @param hostName -- the name of the host, e.g. localhost
+     * @param portNumber -- the port number the server is listening on
+     * @param timeoutMillis -- how long to wait for the connection, 0 for no limit
+     * @return -- the connected client
+     * @throws IOException -- if the connection could not be made
+     */
+    public static Client open(String hostName, int portNumber, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(hostName, portNumber), timeoutMillis);
+            return new Client(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
     /**
      * Sends a message to the server, waits for the response,
      * and returns it.
@@ -51,8 +124,9 @@ import java.net.*;
     public String send(String userInput) {
         String response = "";
         try {
+            forgetWritten(userInput);
             out.println(userInput);
-            response = in.readLine();
+            response = readLine();
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Unexpected Error.");
@@ -68,9 +142,549 @@ import java.net.*;
      * @param userInput -- the message to send
      */
     public void sendNoResponse(String userInput) {
+        forgetWritten(userInput);
         out.println(userInput);
     }
 
+    /**
+     * Sends one or more lines to the server and waits for a single response.
+     * A PUT is sent as request("PUT key", "value").
+     * Errors are thrown to the caller instead of ending the process.
+     * @param lines -- the lines making up the request
+     * @return -- the response from the server
+     * @throws IOException -- if the connection failed, or the server closed it
+     */
+    public String request(String... lines) throws IOException {
+        if (lines.length > 0) {
+            forgetWritten(lines[0]);
+        }
+        for (String line : lines) {
+            out.print(line + "\n");
+        }
+        out.flush();
+        if (out.checkError()) { throw new IOException("Could not write to the server"); }
+        String response = readLine();
+        if (response == null) { throw new EOFException("Server closed the connection"); }
+        return response;
+    }
+
+    /**
+     * Connects as clientID, with CONNECT+DEFLATE, so that everything sent
+     * either way afterwards is compressed, see WireCompression.
+     * @return -- the server's answer, CONNECT: OK if the session began
+     * @throws IOException -- if the connection failed
+     */
+    public String connectCompressed(String clientID) throws IOException {
+        String response = request("CONNECT+DEFLATE " + clientID);
+        if (response.equals("CONNECT: OK")) {
+            // the server sends nothing more until asked, so nothing is left in the old reader
+            WireCompression.Output compressed = new WireCompression.Output(socket.getOutputStream(),
+                ValueCompressor.LEVEL, null);
+            compressed.start();
+            out = new PrintWriter(compressed, true);
+            in = new BufferedReader(new InputStreamReader(
+                new WireCompression.Input(socket.getInputStream(), null, null, null)));
+        }
+        return response;
+    }
+
+    /**
+     * Connects as clientID, with CONNECT+CRC, so that the server follows
+     * its responses with their checksums, which are checked as they are
+     * read, see ChecksumOutputStream.
+     * @return -- the server's answer, CONNECT: OK if the session began
+     * @throws IOException -- if the connection failed
+     */
+    public String connectChecked(String clientID) throws IOException {
+        String response = request("CONNECT+CRC " + clientID);
+        if (response.equals("CONNECT: OK")) {
+            // the server sends nothing more until asked, so nothing is left in the old reader
+            checked = new BufferedInputStream(socket.getInputStream());
+            crc.reset();
+        }
+        return response;
+    }
+
+    /**
+     * A value and the version it was stored with, as read by getVersioned.
+     */
+    public static final class Versioned {
+        public final String value;
+        public final long version;
+
+        Versioned(String value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Reads a key's value along with its version, for compareAndSet.
+     * @return -- the value and version, or null if the key is not stored
+     * @throws IOException -- if the connection failed
+     */
+    public Versioned getVersioned(String key) throws IOException {
+        String header = request("GETV " + key);
+        if (header.equals("GETV: ERROR")) {
+            return null;
+        }
+        if (!header.startsWith("GETV: ")) { throw new IOException("Unexpected GETV response: " + header); }
+        String value = readLine();
+        if (value == null) { throw new EOFException("Server closed the connection"); }
+        return new Versioned(value, Long.parseLong(header.substring(6)));
+    }
+
+    /**
+     * Stores a value only if the key has not changed since it was read
+     * with getVersioned.
+     * @param version -- the version read, or 0 to store only if the key has no value
+     * @return -- the version of the value stored, or -1 if the key had changed
+     * @throws IOException -- if the connection failed or the server refused the request
+     */
+    public long compareAndSet(String key, long version, String value) throws IOException {
+        String response = request("CAS " + key + " " + version, value);
+        if (response.startsWith("CAS: OK ")) {
+            return Long.parseLong(response.substring(8));
+        }
+        if (response.startsWith("CAS: CONFLICT ")) {
+            return -1;
+        }
+        throw new IOException("CAS failed: " + response);
+    }
+
+    /**
+     * Adds delta to the number stored under key, in a single round trip.
+     * A missing key counts as 0.
+     * @return -- the new value
+     * @throws IOException -- if the connection failed, or the value is not a number
+     */
+    public long increment(String key, long delta) throws IOException {
+        String response = delta >= 0 
+            ? request("INCR " + key + " " + delta)
+            : request("DECR " + key + " " + (-delta));
+        if (response.endsWith("ERROR") || response.length() < 6) {
+            throw new IOException("Increment failed: " + response);
+        }
+        return Long.parseLong(response.substring(6));
+    }
+
+    /**
+     * Adds suffix to the end of the value stored under key, creating it if needed.
+     * @return -- the length of the value afterwards
+     * @throws IOException -- if the connection failed or the value cannot be appended to
+     */
+    public long append(String key, String suffix) throws IOException {
+        String response = request("APPEND " + key, suffix);
+        if (!response.startsWith("APPEND: OK ")) { throw new IOException("APPEND failed: " + response); }
+        return Long.parseLong(response.substring(11));
+    }
+
+    /**
+     * Turns on the near-cache, sending TRACKING ON so that the server 
+     * pushes an invalidation whenever a key read since then changes.
+     * Values must not start with the byte 0x1e, which marks the pushes.
+     * @param maxEntries -- the most values to keep, dropping the least recently used
+     * @throws IOException -- if the connection failed or the server refused tracking
+     */
+    public void enableNearCache(int maxEntries) throws IOException {
+        if (maxEntries < 1) { throw new IllegalArgumentException("maxEntries must be at least 1"); }
+        String response = request("TRACKING ON");
+        if (!response.equals("TRACKING: OK")) { throw new IOException("Server refused tracking: " + response); }
+        nearCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Reads a key, from the near-cache if it is on and holds the key.
+     * Missing keys are cached too, as GET: ERROR.
+     * @param key -- the key to read
+     * @return -- the value, or GET: ERROR if the key is not stored
+     * @throws IOException -- if the connection failed
+     */
+    public String get(String key) throws IOException {
+        if (nearCache == null) {
+            return request("GET " + key);
+        }
+        applyPushes();
+        String value = nearCache.get(key);
+        if (value != null) {
+            nearCacheHits++;
+            return value;
+        }
+        value = request("GET " + key);
+        nearCache.put(key, value);
+        return value;
+    }
+
+    /**
+     * @return -- the number of get() calls answered from the near-cache
+     */
+    public long nearCacheHits() {
+        return nearCacheHits;
+    }
+
+    /**
+     * Asks the server to push a STORED or DELETED line each time key changes.
+     * @throws IOException -- if the connection failed or the server refused
+     */
+    public void watch(String key) throws IOException {
+        String response = request("WATCH " + key);
+        if (!response.equals("WATCH: OK")) { throw new IOException("WATCH failed: " + response); }
+    }
+
+    /**
+     * Asks the server to push a STORED or DELETED line each time a key
+     * starting with prefix changes.
+     * @param prefix -- the start of the keys to watch, empty for every key
+     * @throws IOException -- if the connection failed or the server refused
+     */
+    public void subscribe(String prefix) throws IOException {
+        String response = request("SUBSCRIBE " + prefix);
+        if (!response.equals("SUBSCRIBE: OK")) { throw new IOException("SUBSCRIBE failed: " + response); }
+    }
+
+    /**
+     * Returns the oldest change pushed by the server for a watched key or
+     * subscribed prefix, without waiting for one.
+     * @return -- the push, such as STORED key, DELETED key or DROPPED n, or
+     * null if none has arrived
+     * @throws IOException -- if the connection failed
+     */
+    public String pollPush() throws IOException {
+        applyPushes();
+        return pushes.poll();
+    }
+
+    /**
+     * Fetches many keys with MGET requests of at most MAX_BATCH keys each.
+     * @param keys -- the keys to fetch
+     * @return -- the value of each key in order, or GET: ERROR where a key is missing
+     * @throws IOException -- if the connection failed or the server refused a batch
+     */
+    public List<String> mget(List<String> keys) throws IOException {
+        List<String> values = new ArrayList<>(keys.size());
+        for (int start = 0; start < keys.size(); start += DavidPaulProtocol.MAX_BATCH) {
+            List<String> batch = keys.subList(start, Math.min(keys.size(), start + DavidPaulProtocol.MAX_BATCH));
+            out.print("MGET " + batch.size() + "\n");
+            for (String key : batch) {
+                out.print(key + "\n");
+            }
+            String header = request();
+            if (!header.equals("MGET: " + batch.size())) {
+                throw new IOException("Unexpected MGET response: " + header);
+            }
+            readResponses(values, batch.size());
+        }
+        return values;
+    }
+
+    /**
+     * Stores many key-value pairs with MPUT requests of at most MAX_BATCH
+     * pairs each.
+     * @param pairs -- the pairs to store
+     * @return -- MPUT: OK n, where n is the number of pairs stored
+     * @throws IOException -- if the connection failed or the server refused a batch
+     */
+    public String mput(Map<String, String> pairs) throws IOException {
+        if (nearCache != null) {
+            nearCache.keySet().removeAll(pairs.keySet());
+        }
+        List<Map.Entry<String, String>> entries = new ArrayList<>(pairs.entrySet());
+        long stored = 0;
+        for (int start = 0; start < entries.size(); start += DavidPaulProtocol.MAX_BATCH) {
+            List<Map.Entry<String, String>> batch =
+                entries.subList(start, Math.min(entries.size(), start + DavidPaulProtocol.MAX_BATCH));
+            out.print("MPUT " + batch.size() + "\n");
+            for (Map.Entry<String, String> pair : batch) {
+                out.print(pair.getKey() + "\n" + pair.getValue() + "\n");
+            }
+            stored += batchCount("MPUT: OK ", request());
+        }
+        return "MPUT: OK " + stored;
+    }
+
+    /**
+     * Deletes many keys with MDELETE requests of at most MAX_BATCH keys each.
+     * @param keys -- the keys to delete
+     * @return -- MDELETE: OK d, where d is the number of keys which existed
+     * @throws IOException -- if the connection failed or the server refused a batch
+     */
+    public String mdelete(List<String> keys) throws IOException {
+        if (nearCache != null) {
+            nearCache.keySet().removeAll(keys);
+        }
+        long deleted = 0;
+        for (int start = 0; start < keys.size(); start += DavidPaulProtocol.MAX_BATCH) {
+            List<String> batch = keys.subList(start, Math.min(keys.size(), start + DavidPaulProtocol.MAX_BATCH));
+            out.print("MDELETE " + batch.size() + "\n");
+            for (String key : batch) {
+                out.print(key + "\n");
+            }
+            deleted += batchCount("MDELETE: OK ", request());
+        }
+        return "MDELETE: OK " + deleted;
+    }
+
+    /**
+     * @return -- the count at the end of a batch's response
+     * @throws IOException -- if the response is not the expected one
+     */
+    private static long batchCount(String expected, String response) throws IOException {
+        if (!response.startsWith(expected)) {
+            throw new IOException("Unexpected batch response: " + response);
+        }
+        try {
+            return Long.parseLong(response.substring(expected.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected batch response: " + response);
+        }
+    }
+
+    /**
+     * Lists every key starting with prefix, in order, paging through them
+     * with SCAN requests.
+     * @param prefix -- the prefix of the keys to list, may be empty
+     * @param pageSize -- the most keys to fetch with each request
+     * @return -- the keys
+     * @throws IOException -- if the connection failed or the server refused the scan
+     */
+    public List<String> scan(String prefix, int pageSize) throws IOException {
+        List<String> keys = new ArrayList<>();
+        String cursor = "0";
+        do {
+            String header = request("SCAN " + prefix + " " + pageSize + " " + cursor);
+            String[] parts = header.split(" ");
+            if (parts.length != 3 || !parts[0].equals("SCAN:")) {
+                throw new IOException("Unexpected SCAN response: " + header);
+            }
+            cursor = parts[1];
+            readResponses(keys, Integer.parseInt(parts[2]));
+        } while (!cursor.equals("0"));
+        return keys;
+    }
+
+    /**
+     * @return -- true if this client's connection has been closed
+     */
+    public boolean isClosed() {
+        return socket == null || socket.isClosed();
+    }
+
+    /**
+     * Closes the connection to the server without sending DISCONNECT.
+     */
+    public void close() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // the socket is unusable either way
+        }
+    }
+
+    /**
+     * Sends a batch of messages to the server without waiting for each
+     * response in turn. Up to 'depth' messages are written and flushed
+     * together, then all of their responses are read back before the
+     * next group is sent. This lets bulk loads run at the speed of the
+     * connection rather than one round trip per message.
+     * The value line following a PUT, CAS or APPEND is recognised so that
+     * the command line itself is not counted as expecting a response.
+     * Every other message must have a single line response, so commands
+     * with longer responses or more lines, such as GETV, MGET, SCAN and
+     * STATS, cannot be pipelined this way.
+     * @param requests -- the messages to send, in order.
+     * @param depth -- the maximum number of messages in flight at once.
+     * @return -- the responses from the server, in the order they were received.
+     * @throws IllegalArgumentException -- if a message is a command which
+     * cannot be pipelined, checked before anything is sent
+     */
+    public List<String> sendPipelined(List<String> requests, int depth) {
+        if (depth < 1) { throw new IllegalArgumentException("depth must be at least 1"); }
+        boolean isValue = false;
+        for (String request : requests) {
+            if (!isValue) {
+                for (String command : MULTI_LINE) {
+                    if (request.startsWith(command)) {
+                        throw new IllegalArgumentException("Cannot pipeline " + request);
+                    }
+                }
+            }
+            isValue = !isValue && hasValueLine(request);
+        }
+        List<String> responses = new ArrayList<>(requests.size());
+        boolean nextIsValue = false;
+        int pending = 0;
+        try {
+            for (String request : requests) {
+                if (!nextIsValue) {
+                    forgetWritten(request);
+                }
+                out.print(request + "\n");
+                if (!nextIsValue && hasValueLine(request)) {
+                    // the server does not respond until it has the value
+                    nextIsValue = true;
+                    continue;
+                }
+                nextIsValue = false;
+                pending++;
+                if (pending == depth) {
+                    out.flush();
+                    readResponses(responses, pending);
+                    pending = 0;
+                }
+            }
+            out.flush();
+            readResponses(responses, pending);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Unexpected Error.");
+            System.exit(-1);
+        }
+        return responses;
+    }
+
+    private static boolean hasValueLine(String request) {
+        for (String command : WITH_VALUE) {
+            if (request.startsWith(command)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the given number of response lines from the server.
+     */
+    private void readResponses(List<String> responses, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            String response = readLine();
+            if (response == null) { throw new EOFException("Server closed the connection"); }
+            responses.add(response);
+        }
+    }
+
+    /**
+     * Reads the next response line, applying any pushes before it.
+     * @return -- the line, or null if the server closed the connection
+     */
+    private String readLine() throws IOException {
+        String line = nextLine(true);
+        while (line != null && !line.isEmpty() && line.charAt(0) == PushDispatcher.PUSH_MARKER) {
+            applyPush(line);
+            line = nextLine(true);
+        }
+        return line;
+    }
+
+    /**
+     * Applies every push the server has already sent, without waiting.
+     * Only called between requests, when no response is due.
+     */
+    private void applyPushes() throws IOException {
+        String line;
+        while ((line = nextLine(false)) != null) {
+            if (line.isEmpty() || line.charAt(0) != PushDispatcher.PUSH_MARKER) {
+                throw new IOException("Unexpected line from the server: " + line);
+            }
+            applyPush(line);
+        }
+    }
+
+    /**
+     * Reads the next line from the server, checking and skipping any
+     * checksums before it once connected with connectChecked.
+     * @param wait -- false to return null rather than wait for a line which has not arrived
+     * @return -- the line, or null if the server closed the connection
+     * @throws IOException -- if the connection failed, or the lines failed their checksum
+     */
+    private String nextLine(boolean wait) throws IOException {
+        if (checked == null) {
+            return wait || in.ready() ? in.readLine() : null;
+        }
+        while (wait || checked.available() > 0) {
+            lineBytes.reset();
+            int b;
+            while ((b = checked.read()) != -1 && b != '\n') {
+                lineBytes.write(b);
+            }
+            if (b == -1) {
+                return null;
+            }
+            String line = lineBytes.toString();
+            if (!line.isEmpty() && line.charAt(0) == ChecksumOutputStream.CHECKSUM_MARKER) {
+                checkSum(line);
+                continue;
+            }
+            crc.update(lineBytes.toByteArray());
+            crc.update('\n');
+            return line;
+        }
+        return null;
+    }
+
+    /**
+     * Compares a checksum line from the server with the checksum of the
+     * lines read since the last one, and starts again.
+     */
+    private void checkSum(String line) throws IOException {
+        long expected;
+        try {
+            expected = Long.parseLong(line.substring(line.indexOf(' ') + 1), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed checksum from the server: " + line.substring(1));
+        }
+        long actual = crc.getValue();
+        crc.reset();
+        if (expected != actual) {
+            throw new IOException(String.format("Responses failed their checksum, %08x not %08x",
+                actual, expected));
+        }
+    }
+
+    private void applyPush(String line) {
+        int space = line.indexOf(' ');
+        if (line.startsWith("INVALIDATE", 1)) {
+            if (nearCache != null && space > 0) {
+                nearCache.remove(line.substring(space + 1));
+            }
+            return;
+        }
+        if (line.startsWith("DROPPED", 1) && nearCache != null) {
+            // invalidations may have been lost with the rest
+            nearCache.clear();
+        }
+        pushes.add(line.substring(1));
+    }
+
+    /**
+     * Drops the key a line such as PUT or DELETE is about to change from the
+     * near-cache, so the next get() reads the new value from the server.
+     */
+    private void forgetWritten(String line) {
+        if (nearCache == null) {
+            return;
+        }
+        for (String command : WRITES) {
+            if (line.startsWith(command)) {
+                nearCache.remove(line.substring(command.length()));
+                return;
+            }
+        }
+        for (String command : NUMBERED_WRITES) {
+            int space = line.lastIndexOf(' ');
+            if (line.startsWith(command) && space >= command.length()) {
+                nearCache.remove(line.substring(command.length(), space));
+                return;
+            }
+        }
+    }
+
     /**
      * Creates a client that connects to the specified host on the 
      * specified port and enters a request-response loop.
@@ -0,0 +1,280 @@
+package protocol;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of Clients which have already connected to the
+ * server and completed the CONNECT handshake.
+ *
+ * Each pooled session connects with its own clientID, made from the
+ * given prefix and a counter, since the server does not allow two
+ * sessions with the same clientID.
+ *
+ * At most maxSize sessions are lent out at once; borrow() waits up to
+ * the borrow timeout for one to be returned before giving up. Idle
+ * sessions are handed out most recently used first, and a background
+ * thread closes sessions which have been idle longer than the idle
+ * timeout, while keeping at least minSize sessions open.
+ *
+ * Broken sessions are closed and replaced rather than ending the
+ * process, so the pool can be used from long running services.
+ */
+public class ClientPool implements Closeable {
+
+    // sessions idle for longer than this are checked with a request before being lent out
+    private static final long VALIDATE_AFTER_MILLIS = 1000;
+    // requests which change nothing, and so may be sent again after a session breaks
+    private static final String[] READS = { "GET ", "GETV ", "MGET ", "SCAN ", "STATS" };
+    // a batch of no keys, which the server answers without touching storage
+    private static final String PROBE = "MGET 0";
+
+    /**
+     * An idle session and the time it was returned to the pool.
+     */
+    private static class IdleClient {
+        private final Client client;
+        private final long idleSince = System.nanoTime();
+
+        private IdleClient(Client client) {
+            this.client = client;
+        }
+    }
+
+    private final String hostName;
+    private final int portNumber;
+    private final String clientIdPrefix;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final Semaphore borrowed;
+    private final LinkedBlockingDeque<IdleClient> idle = new LinkedBlockingDeque<>();
+    private final AtomicLong sessionCount = new AtomicLong();
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    /**
+     * Creates the pool and opens minSize sessions.
+     * @param hostName -- the name of the host, e.g. localhost
+     * @param portNumber -- the port number the server is listening on
+     * @param clientIdPrefix -- sessions connect as clientIdPrefix-1, clientIdPrefix-2, ...
+     * @param minSize -- the number of sessions to keep open when idle
+     * @param maxSize -- the maximum number of sessions lent out at once
+     * @param idleTimeoutMillis -- idle sessions above minSize are closed after this long
+     * @param borrowTimeoutMillis -- how long borrow() waits for a free session
+     * @throws IOException -- if the initial sessions cannot be opened
+     */
+    public ClientPool(String hostName, int portNumber, String clientIdPrefix, int minSize,
+            int maxSize, long idleTimeoutMillis, long borrowTimeoutMillis) throws IOException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Require 0 <= minSize <= maxSize and maxSize >= 1");
+        }
+        this.hostName = hostName;
+        this.portNumber = portNumber;
+        this.clientIdPrefix = clientIdPrefix;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.borrowed = new Semaphore(maxSize);
+
+        for (int i = 0; i < minSize; i++) {
+            idle.addFirst(new IdleClient(newSession()));
+        }
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ClientPool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a connected session from the pool, opening a new one if
+     * none are idle. The session must be given back with release(), or
+     * with invalidate() if it failed.
+     * @return -- a connected client
+     * @throws IOException -- if no session became free within the borrow
+     * timeout, or a new session could not be opened
+     */
+    public Client borrow() throws IOException {
+        if (closed) { throw new IOException("Pool is closed"); }
+        try {
+            if (!borrowed.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a connection from the pool");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            IdleClient candidate;
+            while ((candidate = idle.pollFirst()) != null) {
+                if (isHealthy(candidate)) {
+                    return candidate.client;
+                }
+                candidate.client.close();
+            }
+            return newSession();
+        } catch (IOException | RuntimeException e) {
+            borrowed.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy session to the pool.
+     * @param client -- a client previously taken with borrow()
+     */
+    public void release(Client client) {
+        if (closed || client.isClosed()) {
+            client.close();
+        } else {
+            idle.addFirst(new IdleClient(client));
+        }
+        borrowed.release();
+    }
+
+    /**
+     * Returns a session which failed, closing it so it is never lent out again.
+     * @param client -- a client previously taken with borrow()
+     */
+    public void invalidate(Client client) {
+        client.close();
+        borrowed.release();
+    }
+
+    /**
+     * Borrows a session, sends the request and returns the session to the
+     * pool. If the session turns out to be broken it is replaced, and a
+     * request which only reads is tried once more on a new session. Any
+     * other request may already have been applied, so its failure is
+     * thrown to the caller rather than risk applying it twice.
+     * @param lines -- the lines of the request, e.g. "PUT key", "value"
+     * @return -- the response from the server
+     * @throws IOException -- if the request failed, on a fresh session too if it was a read
+     */
+    public String send(String... lines) throws IOException {
+        int attempts = lines.length > 0 && isRead(lines[0]) ? 2 : 1;
+        IOException failure = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            Client client = borrow();
+            try {
+                String response = client.request(lines);
+                release(client);
+                return response;
+            } catch (IOException e) {
+                invalidate(client);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static boolean isRead(String command) {
+        for (String read : READS) {
+            if (command.startsWith(read)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes all idle sessions and stops the maintenance thread.
+     * Borrowed sessions are closed as they are returned.
+     */
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        IdleClient c;
+        while ((c = idle.pollFirst()) != null) {
+            disconnect(c.client);
+        }
+    }
+
+    /**
+     * Opens a new session and performs the CONNECT handshake.
+     */
+    private Client newSession() throws IOException {
+        Client client = Client.open(hostName, portNumber, (int) borrowTimeoutMillis);
+        String clientID = clientIdPrefix + "-" + sessionCount.incrementAndGet();
+        try {
+            String response = client.request("CONNECT " + clientID);
+            if (!response.equals("CONNECT: OK")) {
+                throw new IOException("Server refused connection for " + clientID + ": " + response);
+            }
+            return client;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A session is healthy if its socket is open and, when it has sat
+     * idle for a while, it still answers a request.
+     */
+    private boolean isHealthy(IdleClient candidate) {
+        if (candidate.client.isClosed()) {
+            return false;
+        }
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - candidate.idleSince);
+        if (idleMillis < VALIDATE_AFTER_MILLIS) {
+            return true;
+        }
+        try {
+            return candidate.client.request(PROBE).equals("MGET: 0");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Run periodically - closes sessions idle past the timeout, oldest
+     * first, then opens sessions until at least minSize are open.
+     */
+    private void maintain() {
+        long now = System.nanoTime();
+        int open = idle.size() + inUse();
+        Iterator<IdleClient> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && open > minSize) {
+            IdleClient c = oldestFirst.next();
+            if (TimeUnit.NANOSECONDS.toMillis(now - c.idleSince) < idleTimeoutMillis) {
+                break;
+            }
+            if (idle.removeLastOccurrence(c)) {
+                disconnect(c.client);
+                open--;
+            }
+        }
+        try {
+            while (!closed && idle.size() + inUse() < minSize) {
+                idle.addLast(new IdleClient(newSession()));
+            }
+        } catch (IOException e) {
+            // the server may be down - try again next time round
+        }
+    }
+
+    private int inUse() {
+        return maxSize - borrowed.availablePermits();
+    }
+
+    private void disconnect(Client client) {
+        try {
+            client.request("DISCONNECT");
+        } catch (IOException e) {
+            // closing anyway
+        }
+        client.close();
+    }
+}
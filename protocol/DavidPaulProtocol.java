@@ -2,7 +2,12 @@ package protocol;
 
 import java.net.*;
 import java.io.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * An implementation of the David Paul Protocol, named after
@@ -14,8 +19,25 @@ import java.util.HashMap;
  * 'CONNECT clientID' where the clientID is a username which does not contain a newline.
  * Otherwise, an IOException is thrown.
  * ClientId cannot be "" or only "\r" - this will cause the server to drop the connection.
- * key-value storage is then intialised for the client on the server, which the client
- * interacts with as follows:
+ * The server answers CONNECT: ERROR if another session is connected with
+ * the same clientID, and may answer CONNECT: BUSY, before the CONNECT is
+ * even read, if it has too many sessions open.
+ * 
+ * Options may be attached to the CONNECT word, as CONNECT+OPTION clientID,
+ * or CONNECT+OPTION+OPTION clientID for more than one. With BINARY, once 
+ * the server has answered CONNECT: OK, all further messages in both
+ * directions are binary frames as described in FrameCodec rather than
+ * lines of text. The client must wait for the CONNECT: OK before sending
+ * its first frame. Binary frames may carry any bytes in keys and values,
+ * including newlines; such values cannot be read back correctly by a 
+ * text session. With DEFLATE, everything after the CONNECT: OK, in both
+ * directions, is compressed as described in WireCompression; text and
+ * frames alike are unchanged once inflated. With CRC, the server follows
+ * each batch of responses with a checksum of them, as described in
+ * ChecksumOutputStream; in a text session it is a line starting with the
+ * byte 0x1f, which values must not start with.
+ * The client then interacts with the key-value storage it was given, which
+ * the server shares between all connected clients, as follows:
  * 
  * PUT key
  * the server does not response to this message, but waits for another message
@@ -30,17 +52,136 @@ import java.util.HashMap;
  * DELETE: OK if successful or 
  * DELETE: ERROR if unsuccessful, or if the key did not exists
  * 
+ * MPUT n
+ * followed by n pairs of lines, a key and then its value. The server 
+ * stores all of the pairs and returns MPUT: OK n.
+ * 
+ * MGET n
+ * followed by n lines, each a key. The server returns MGET: n followed by
+ * n lines, each the value of the corresponding key or GET: ERROR.
+ * 
+ * MDELETE n
+ * followed by n lines, each a key. The server deletes the keys and returns
+ * MDELETE: OK d where d is the number of keys which existed.
+ * 
+ * A batch command whose count is not a number returns MPUT: ERROR,
+ * MGET: ERROR or MDELETE: ERROR and the lines after it are treated as
+ * ordinary commands. A batch with more than MAX_BATCH keys, or whose
+ * lines come to more than MAX_BATCH_BYTES, has its lines read to its end
+ * but not executed, and returns the same error; a count too large to
+ * read to its end closes the connection. The limits are set with the system properties
+ * protocol.batch.maxKeys, 10000 by default, and protocol.batch.maxBytes,
+ * 16 MB by default.
+ * 
+ * PUTC key
+ * stores a value of any length and content, sent in chunks. Each chunk is
+ * a line holding its length in hex followed by exactly that many raw
+ * bytes, and a chunk of length 0 ends the value. The bytes are streamed 
+ * into storage as they arrive; values larger than a threshold go to a
+ * file rather than the heap, see ValueWriter. The server returns 
+ * PUTC: OK n where n is the length stored. A chunk length which is not 
+ * valid hex closes the connection, as the rest of the value cannot be 
+ * told apart from commands.
+ * 
+ * GETC key
+ * the server returns GETC: n followed by exactly n raw bytes of the value
+ * and no newline, or GETC: ERROR if there is none. Values held in files
+ * are sent from the file to the socket with FileChannel.transferTo, so
+ * they never pass through the heap. This is the way to read values 
+ * which contain newlines or are too large for GET.
+ * 
+ * SCAN prefix limit cursor
+ * lists up to limit keys starting with prefix, in order of their bytes.
+ * The prefix may be empty or contain spaces; the last two words are always
+ * the limit, from 1 to MAX_BATCH, and the cursor, which is 0 for the first
+ * page. The server returns SCAN: next n followed by n lines, each a key,
+ * where next is the cursor for the following page, or 0 if there are no 
+ * more keys. Keys stored or deleted while paging may or may not be listed.
+ * The server returns SCAN: ERROR if the arguments are invalid or the 
+ * storage keeps no ordered index.
+ * 
+ * TRACKING ON
+ * the server returns TRACKING: OK and from then on remembers every key the
+ * session reads with GET or MGET. When one of them is next stored or 
+ * deleted, by any session, the server pushes the line INVALIDATE key 
+ * to this session, prefixed with the byte 0x1e, so a client can keep the 
+ * values it has read in a cache and drop them once told. Pushes arrive 
+ * between responses, never inside one, but may come at any time, so a 
+ * client with tracking on must check every line it reads for the prefix,
+ * and must not store values starting with it. TRACKING OFF stops keys
+ * being remembered. Binary sessions, and sessions not on a socket, 
+ * return TRACKING: ERROR.
+ * 
+ * WATCH key
+ * SUBSCRIBE prefix
+ * the server returns WATCH: OK or SUBSCRIBE: OK and from then on, each 
+ * time the key, or any key starting with the prefix, is stored or deleted
+ * by any session, pushes the line STORED key or DELETED key to this 
+ * session, prefixed with the byte 0x1e as for TRACKING. The prefix may be
+ * empty, to be told of every change. Changes are pushed in the order they
+ * were made to each key; a key the session both watches and subscribes 
+ * to, or covers with two prefixes, is pushed once for each. UNWATCH key and UNSUBSCRIBE
+ * prefix stop the pushes and return UNWATCH: OK or UNSUBSCRIBE: OK. A
+ * session falling too far behind its pushes is disconnected, or if the 
+ * server is set to drop pushes instead, is pushed the line DROPPED n with
+ * the number lost, see PushDispatcher. WATCH and SUBSCRIBE return their
+ * ERROR response once the session watches as many keys and prefixes as
+ * the server allows, and like TRACKING in binary sessions.
+ * 
+ * GETV key
+ * the server returns GETV: version followed by the value, on its own line,
+ * or GETV: ERROR. The version of a key's value is a positive number which
+ * is greater each time the key is stored.
+ * 
+ * CAS key version
+ * followed, as with PUT, by a line with the value, which the server stores
+ * only if the key's value still has the version given, or for version 0 
+ * only if the key has no value. It returns CAS: OK v with the version of
+ * the value stored, or CAS: CONFLICT v with the version of the current
+ * value, 0 if there is none, or CAS: ERROR if the version is not a number.
+ * As with INCR, the last word is always the version.
+ * 
+ * INCR key amount
+ * DECR key amount
+ * the server adds the amount, a decimal number, to or takes it from the 
+ * value of the key, which must be a decimal number and is taken as 0 if
+ * there is none, and returns INCR: n or DECR: n with the new value. It
+ * returns INCR: ERROR or DECR: ERROR, changing nothing, if the value or
+ * the amount is not a number or the result would overflow a long. The
+ * key may contain spaces; the last word is always the amount.
+ * 
+ * APPEND key
+ * followed by a line which the server adds to the end of the key's value,
+ * creating the key if there is none, returning APPEND: OK n with the new 
+ * length, or APPEND: ERROR if the value is held in a file or would grow
+ * longer than a line may be.
+ * 
+ * GETV, CAS, INCR, DECR and APPEND each take place atomically inside the
+ * storage, so no other change to the key comes between reading its value
+ * and writing the new one, and a counter needs one round trip rather 
+ * than a GET and a PUT.
+ * 
+ * STATS
+ * the server returns STATS: n followed by n lines, each the name of a 
+ * figure and its value, covering sessions, bytes transferred, and the 
+ * count and p50/p99/p999 processing latency in microseconds of each command.
+ * 
  * DISCONNECT
  * the server gracefully closes the connection, returning the message
  * DISCONNECT: OK.
  * 
+ * A server running as a replica (see MultiServer) is read-only: PUT,
+ * DELETE, MPUT, MDELETE, PUTC, CAS, INCR, DECR and APPEND are read in full as usual but change
+ * nothing and return their ERROR response, and in binary mode PUT and
+ * DELETE return STATUS_ERROR.
+ * 
  * All other messages cause the server to close the socket without 
  * response.
  * 
  */ 
 public class DavidPaulProtocol {
 
-    private enum Command {
+    enum Command {
         CONNECT {
             public String toString() {
                 return "CONNECT ";
@@ -65,127 +206,1158 @@ public class DavidPaulProtocol {
             public String toString() {
                 return "DISCONNECT";
             }
+        },
+        MPUT {
+            public String toString() {
+                return "MPUT ";
+            }
+        },
+        MGET {
+            public String toString() {
+                return "MGET ";
+            }
+        },
+        MDELETE {
+            public String toString() {
+                return "MDELETE ";
+            }
+        },
+        STATS {
+            public String toString() {
+                return "STATS";
+            }
+        },
+        PUTC {
+            public String toString() {
+                return "PUTC ";
+            }
+        },
+        GETC {
+            public String toString() {
+                return "GETC ";
+            }
+        },
+        SCAN {
+            public String toString() {
+                return "SCAN ";
+            }
+        },
+        TRACKING {
+            public String toString() {
+                return "TRACKING ";
+            }
+        },
+        GETV {
+            public String toString() {
+                return "GETV ";
+            }
+        },
+        CAS {
+            public String toString() {
+                return "CAS ";
+            }
+        },
+        INCR {
+            public String toString() {
+                return "INCR ";
+            }
+        },
+        DECR {
+            public String toString() {
+                return "DECR ";
+            }
+        },
+        APPEND {
+            public String toString() {
+                return "APPEND ";
+            }
+        },
+        WATCH {
+            public String toString() {
+                return "WATCH ";
+            }
+        },
+        UNWATCH {
+            public String toString() {
+                return "UNWATCH ";
+            }
+        },
+        SUBSCRIBE {
+            public String toString() {
+                return "SUBSCRIBE ";
+            }
+        },
+        UNSUBSCRIBE {
+            public String toString() {
+                return "UNSUBSCRIBE ";
+            }
         }
     }
+
+    // the largest number of keys accepted in one batch command
+    public static final int MAX_BATCH = Integer.getInteger("protocol.batch.maxKeys", 10000);
+    // the most bytes of keys and values one batch command may hold while its lines are collected
+    public static final long MAX_BATCH_BYTES = Long.getLong("protocol.batch.maxBytes", 16L << 20);
+    // the largest value accepted by PUTC
+    public static final long MAX_CHUNKED_LENGTH = 1L << 40;
+
+    // command prefixes and responses, as bytes ready to match and write
+    private static final byte[] PUT = ascii(Command.PUT.toString());
+    private static final byte[] GET = ascii(Command.GET.toString());
+    private static final byte[] DELETE = ascii(Command.DELETE.toString());
+    private static final byte[] DISCONNECT = ascii(Command.DISCONNECT.toString());
+    private static final byte[] MPUT = ascii(Command.MPUT.toString());
+    private static final byte[] MGET = ascii(Command.MGET.toString());
+    private static final byte[] MDELETE = ascii(Command.MDELETE.toString());
+    private static final byte[] STATS = ascii(Command.STATS.toString());
+    private static final byte[] PUTC = ascii(Command.PUTC.toString());
+    private static final byte[] GETC = ascii(Command.GETC.toString());
+    private static final byte[] SCAN = ascii(Command.SCAN.toString());
+    private static final byte[] TRACKING = ascii(Command.TRACKING.toString());
+    private static final byte[] GETV = ascii(Command.GETV.toString());
+    private static final byte[] CAS = ascii(Command.CAS.toString());
+    private static final byte[] INCR = ascii(Command.INCR.toString());
+    private static final byte[] DECR = ascii(Command.DECR.toString());
+    private static final byte[] APPEND = ascii(Command.APPEND.toString());
+    private static final byte[] WATCH = ascii(Command.WATCH.toString());
+    private static final byte[] UNWATCH = ascii(Command.UNWATCH.toString());
+    private static final byte[] SUBSCRIBE = ascii(Command.SUBSCRIBE.toString());
+    private static final byte[] UNSUBSCRIBE = ascii(Command.UNSUBSCRIBE.toString());
+    private static final byte[] ON = ascii("ON");
+    private static final byte[] OFF = ascii("OFF");
+    private static final byte[] PUT_OK = ascii("PUT: OK\n");
+    private static final byte[] PUT_ERROR = ascii("PUT: ERROR\n");
+    private static final byte[] GET_ERROR = ascii("GET: ERROR\n");
+    private static final byte[] DELETE_OK = ascii("DELETE: OK\n");
+    private static final byte[] DELETE_ERROR = ascii("DELETE: ERROR\n");
+    private static final byte[] DISCONNECT_OK = ascii("DISCONNECT: OK\n");
+    private static final byte[] MPUT_OK = ascii("MPUT: OK ");
+    private static final byte[] MPUT_ERROR = ascii("MPUT: ERROR\n");
+    private static final byte[] MGET_HEADER = ascii("MGET: ");
+    private static final byte[] MGET_ERROR = ascii("MGET: ERROR\n");
+    private static final byte[] MDELETE_OK = ascii("MDELETE: OK ");
+    private static final byte[] MDELETE_ERROR = ascii("MDELETE: ERROR\n");
+    private static final byte[] STATS_HEADER = ascii("STATS: ");
+    private static final byte[] PUTC_OK = ascii("PUTC: OK ");
+    private static final byte[] PUTC_ERROR = ascii("PUTC: ERROR\n");
+    private static final byte[] GETC_HEADER = ascii("GETC: ");
+    private static final byte[] GETC_ERROR = ascii("GETC: ERROR\n");
+    private static final byte[] SCAN_HEADER = ascii("SCAN: ");
+    private static final byte[] SCAN_ERROR = ascii("SCAN: ERROR\n");
+    private static final byte[] TRACKING_OK = ascii("TRACKING: OK\n");
+    private static final byte[] TRACKING_ERROR = ascii("TRACKING: ERROR\n");
+    private static final byte[] GETV_HEADER = ascii("GETV: ");
+    private static final byte[] GETV_ERROR = ascii("GETV: ERROR\n");
+    private static final byte[] CAS_OK = ascii("CAS: OK ");
+    private static final byte[] CAS_CONFLICT = ascii("CAS: CONFLICT ");
+    private static final byte[] CAS_ERROR = ascii("CAS: ERROR\n");
+    private static final byte[] INCR_HEADER = ascii("INCR: ");
+    private static final byte[] INCR_ERROR = ascii("INCR: ERROR\n");
+    private static final byte[] DECR_HEADER = ascii("DECR: ");
+    private static final byte[] DECR_ERROR = ascii("DECR: ERROR\n");
+    private static final byte[] APPEND_OK = ascii("APPEND: OK ");
+    private static final byte[] APPEND_ERROR = ascii("APPEND: ERROR\n");
+    private static final byte[] WATCH_OK = ascii("WATCH: OK\n");
+    private static final byte[] WATCH_ERROR = ascii("WATCH: ERROR\n");
+    private static final byte[] UNWATCH_OK = ascii("UNWATCH: OK\n");
+    private static final byte[] UNWATCH_ERROR = ascii("UNWATCH: ERROR\n");
+    private static final byte[] SUBSCRIBE_OK = ascii("SUBSCRIBE: OK\n");
+    private static final byte[] SUBSCRIBE_ERROR = ascii("SUBSCRIBE: ERROR\n");
+    private static final byte[] UNSUBSCRIBE_OK = ascii("UNSUBSCRIBE: OK\n");
+    private static final byte[] UNSUBSCRIBE_ERROR = ascii("UNSUBSCRIBE: ERROR\n");
+    private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
  
-    private final HashMap<String, String> storage = new HashMap<>();
-    private String newKey;
-    private boolean waitingForPutValue = false;
+    private final ShardedStore storage;
+    private final ServerStats stats;
+    private final boolean readOnly;
+    // the key of a PUT waiting for its value line, copied out of the line buffer
+    private byte[] pendingKey = new byte[64];
+    private int pendingKeyLength;
+    // PUT, CAS or APPEND while waiting for the value line, otherwise null
+    private Command waitingForValue;
+    // the version a CAS expects, or -1 if it gave an invalid one
+    private long expectedVersion;
+    // the value an update last computed, to tell whether it was stored
+    private StoredValue updatedValue;
+    // reusable keys pointing into the line or frame being processed
+    private final KeyProbe probe = new KeyProbe();
+    private final KeyProbe pendingKeyProbe = new KeyProbe();
+    private final byte[] decimal = new byte[20];
+    // the batch command whose key and value lines are being collected, if any
+    private Command batchCommand;
+    private int batchLinesRemaining;
+    private final List<ByteKey> batchKeys = new ArrayList<>();
+    private final List<byte[]> batchValues = new ArrayList<>();
+    private long batchBytes;
+    // true once the batch has passed MAX_BATCH_BYTES, and its lines are only counted
+    private boolean batchTooLarge;
     private boolean isConnected;
     private boolean isDisconnect;
+    private boolean isBinary;
+    private boolean isDeflate;
+    private boolean isChecksummed;
+    // reused for the header of every binary response
+    private final byte[] frameHeader = new byte[FrameCodec.HEADER_LENGTH];
+    // the session's input and socket channel, for PUTC chunks and zero-copy sends
+    private LineReader rawInput;
+    private WritableByteChannel zeroCopyOut;
+    // where the keys this session watches and reads are registered, if it is a socket session
+    private PushDispatcher.Subscriber pushes;
     
     /**
      * Must be instantiated before use.
+     * The protocol is given its own storage, not shared with any other session.
      */
     public DavidPaulProtocol() {
+        this(new ShardedStore(1), new ServerStats());
+    }
+
+    /**
+     * @param storage -- the key-value storage this session reads and writes
+     * @param stats -- where the commands processed are counted and timed
+     */
+    public DavidPaulProtocol(ShardedStore storage, ServerStats stats) {
+        this(storage, stats, false);
+    }
+
+    /**
+     * @param storage -- the key-value storage this session reads and writes
+     * @param stats -- where the commands processed are counted and timed
+     * @param readOnly -- true to refuse every command which changes the storage
+     */
+    public DavidPaulProtocol(ShardedStore storage, ServerStats stats, boolean readOnly) {
+        this.storage = storage;
+        this.stats = stats;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Gives the protocol direct access to the session's connection, which
+     * PUTC needs to read raw chunks and GET uses to send values held in 
+     * files without copying them onto the heap.
+     * @param in -- the reader the session's lines come from
+     * @param channel -- the socket's channel, under the stream responses 
+     * are written to, or null if it has none
+     */
+    void attach(LineReader in, WritableByteChannel channel) {
+        this.rawInput = in;
+        this.zeroCopyOut = channel;
+    }
 
+    /**
+     * Lets the session WATCH keys, SUBSCRIBE to prefixes and turn on
+     * TRACKING, so that it is pushed their changes.
+     * @param pushes -- the session's end of the server's push dispatcher
+     */
+    void attachPushes(PushDispatcher.Subscriber pushes) {
+        this.pushes = pushes;
     }
 
     /**
      * This method must be called first, otherwise IOException will the thrown. 
-     * The input string must be of the form CONNECT <clientID>\n
+     * The input string must be of the form CONNECT <clientID>\n, with
+     * any of the options +BINARY, +DEFLATE and +CRC after CONNECT.
      * This initialises key-value storage for the connected client.
      * @param input
      * @return
      * @throws IOException
      */
     public String connect(String input) throws IOException {
+        long startNanos = System.nanoTime();
         if (input == null) { throw new IOException(); }
         if (isConnected) { throw new IOException(); }
         if (input.length() < 9) { throw new IOException("Input does not meet the required format."); }
-        // parse the string - must start with CONNECT, followed by a space, and then the ClientID excluding newline
-        if (!input.substring(0,8).equals(Command.CONNECT.toString())) {
+        // parse the string - must start with CONNECT, then any options, followed by a space, 
+        // and then the ClientID excluding newline
+        String connect = Command.CONNECT.toString().trim();
+        int space = input.indexOf(' ');
+        if (!input.startsWith(connect) || space < 0) {
             throw new IOException();
         }
-        if (input.replace("\r","").length() == Command.CONNECT.toString().length()) {
-            throw new IOException();
+        String options = input.substring(connect.length(), space);
+        boolean binary = false;
+        boolean deflate = false;
+        boolean checksummed = false;
+        if (!options.isEmpty()) {
+            if (options.charAt(0) != '+') { throw new IOException(); }
+            for (String option : options.substring(1).split("\\+")) {
+                if (option.equals("BINARY")) {
+                    binary = true;
+                } else if (option.equals("DEFLATE")) {
+                    deflate = true;
+                } else if (option.equals("CRC")) {
+                    checksummed = true;
+                } else {
+                    throw new IOException("Unsupported CONNECT option " + option);
+                }
+            }
         }
         input = input.replace("\r", "");
-        for (int i = 0; i < input.length(); i++) {
-            System.out.println((int) input.charAt(i));
+        if (input.length() == space + 1) {
+            throw new IOException();
         }
+        Log.debug("CONNECT line: {}", input);
         isConnected = true;
-        return input.substring(8, input.length());
+        isBinary = binary;
+        isDeflate = deflate;
+        isChecksummed = checksummed;
+        stats.record(Command.CONNECT, System.nanoTime() - startNanos);
+        return input.substring(space + 1, input.length());
     }
 
     /**
-     * This is the main loop for the protocol. 
-     * Once the client has successfully connected, all input lines from the 
-     * client are sent to this function. The function should return the 
-     * correct message to send back to the client as per the protocol.
-     * If the return string is null, nothing is sent to the client.
+     * Processes a single line of input given as a String, returning the
+     * response as a String. This is the same as processLine, for callers
+     * which are not working with byte buffers.
      * @param input
      * @return String -- the message to return to the client, null if nothing should be sent.
      */
     public String processInput(String input) throws IOException {
         if (input == null) { throw new IOException(); }
+        byte[] line = input.getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        processLine(line, 0, line.length, response);
+        if (response.size() == 0) {
+            return null;
+        }
+        String output = response.toString(StandardCharsets.ISO_8859_1);
+        return output.substring(0, output.length() - 1);
+    }
+
+    /**
+     * This is the main loop for the protocol. 
+     * Once the client has successfully connected, all input lines from the 
+     * client are sent to this function, which writes the correct response,
+     * if any, to out as per the protocol. Each response line ends with a newline.
+     * The command is matched on its bytes and keys are looked up in place,
+     * so nothing is allocated other than a value being stored.
+     * Each command is counted and timed in the stats once its last line 
+     * has been processed.
+     * @param buf -- holds the line, not including its newline
+     * @param off -- the start of the line in buf
+     * @param len -- the length of the line
+     * @param out -- where the response is written
+     */
+    public void processLine(byte[] buf, int off, int len, OutputStream out) throws IOException {
         if (!isConnected) { throw new IOException(); }
+        long startNanos = System.nanoTime();
+        Command completed = handleLine(buf, off, len, out);
+        if (completed != null) {
+            stats.record(completed, System.nanoTime() - startNanos);
+        }
+    }
 
-        String output = null;
+    /**
+     * Processes one line for processLine.
+     * @return -- the command completed by this line, or null if there was none
+     */
+    private Command handleLine(byte[] buf, int off, int len, OutputStream out) throws IOException {
         isDisconnect = false;
-        // PUT VALUE
-        if (waitingForPutValue == true) {
-            System.out.println("Putting new key value pair: " + newKey + " " + input);
-            storage.put(this.newKey, input);
-            newKey = null;
-            waitingForPutValue = false;
-            output = "PUT: OK";
+        // MPUT, MGET or MDELETE key and value lines
+        if (batchCommand != null) {
+            return collectBatchLine(buf, off, len, out);
+        }
+        // PUT, CAS or APPEND VALUE
+        if (waitingForValue != null) {
+            Command command = waitingForValue;
+            waitingForValue = null;
+            ByteKey key = pendingKeyProbe.set(pendingKey, 0, pendingKeyLength);
+            if (command == Command.CAS) {
+                compareAndSet(key, buf, off, len, out);
+            } else if (command == Command.APPEND) {
+                append(key, buf, off, len, out);
+            } else if (readOnly) {
+                out.write(PUT_ERROR);
+            } else {
+                storage.put(key, Arrays.copyOfRange(buf, off, off + len));
+                out.write(PUT_OK);
+            }
+            return command;
+        }
+        switch (len == 0 ? 0 : buf[off]) {
+            case 'P':
+                // PUT
+                if (startsWith(buf, off, len, PUT)) {
+                    savePendingKey(buf, off + PUT.length, len - PUT.length);
+                    this.waitingForValue = Command.PUT;
+                }
+                // PUTC
+                else if (startsWith(buf, off, len, PUTC)) {
+                    savePendingKey(buf, off + PUTC.length, len - PUTC.length);
+                    receiveChunked(out);
+                    return Command.PUTC;
+                }
+                return null;
+            case 'G':
+                // GET
+                if (startsWith(buf, off, len, GET)) {
+                    probe.set(buf, off + GET.length, len - GET.length);
+                    if (pushes != null) {
+                        pushes.track(probe);
+                    }
+                    StoredValue value = storage.get(probe);
+                    if (value == null) {
+                        out.write(GET_ERROR);
+                    } else {
+                        writeValue(value, out);
+                        out.write('\n');
+                    }
+                    return Command.GET;
+                }
+                // GETC
+                else if (startsWith(buf, off, len, GETC)) {
+                    StoredValue value = storage.get(probe.set(buf, off + GETC.length, len - GETC.length));
+                    if (value == null) {
+                        out.write(GETC_ERROR);
+                    } else {
+                        out.write(GETC_HEADER);
+                        writeDecimal(out, value.length());
+                        out.write('\n');
+                        writeValue(value, out);
+                    }
+                    return Command.GETC;
+                }
+                // GETV
+                else if (startsWith(buf, off, len, GETV)) {
+                    StoredValue value = storage.get(probe.set(buf, off + GETV.length, len - GETV.length));
+                    if (value == null) {
+                        out.write(GETV_ERROR);
+                    } else {
+                        out.write(GETV_HEADER);
+                        writeDecimal(out, value.version());
+                        out.write('\n');
+                        writeValue(value, out);
+                        out.write('\n');
+                    }
+                    return Command.GETV;
+                }
+                return null;
+            case 'D':
+                // DELETE 
+                if (startsWith(buf, off, len, DELETE)) {
+                    if (!readOnly && storage.delete(probe.set(buf, off + DELETE.length, len - DELETE.length))) {
+                        out.write(DELETE_OK);
+                    } else {
+                        out.write(DELETE_ERROR);
+                    }
+                    return Command.DELETE;
+                }
+                // DISCONNECT
+                else if (startsWith(buf, off, len, DISCONNECT)) {
+                    this.isDisconnect = true;
+                    out.write(DISCONNECT_OK);
+                    return Command.DISCONNECT;
+                }
+                // DECR
+                else if (startsWith(buf, off, len, DECR)) {
+                    increment(false, buf, off + DECR.length, len - DECR.length, out);
+                    return Command.DECR;
+                }
+                return null;
+            case 'I':
+                // INCR
+                if (startsWith(buf, off, len, INCR)) {
+                    increment(true, buf, off + INCR.length, len - INCR.length, out);
+                    return Command.INCR;
+                }
+                return null;
+            case 'C':
+                // CAS
+                if (startsWith(buf, off, len, CAS)) {
+                    int space = lastSpace(buf, off + CAS.length, off + len);
+                    if (space < 0) {
+                        // no version, so the whole line is the key
+                        space = off + len;
+                    }
+                    savePendingKey(buf, off + CAS.length, space - off - CAS.length);
+                    expectedVersion = parseNumber(buf, space + 1, off + len - space - 1);
+                    this.waitingForValue = Command.CAS;
+                }
+                return null;
+            case 'A':
+                // APPEND
+                if (startsWith(buf, off, len, APPEND)) {
+                    savePendingKey(buf, off + APPEND.length, len - APPEND.length);
+                    this.waitingForValue = Command.APPEND;
+                }
+                return null;
+            case 'M':
+                // MPUT, MGET, MDELETE
+                if (startsWith(buf, off, len, MPUT)) {
+                    return startBatch(Command.MPUT, buf, off + MPUT.length, len - MPUT.length, out);
+                } else if (startsWith(buf, off, len, MGET)) {
+                    return startBatch(Command.MGET, buf, off + MGET.length, len - MGET.length, out);
+                } else if (startsWith(buf, off, len, MDELETE)) {
+                    return startBatch(Command.MDELETE, buf, off + MDELETE.length, len - MDELETE.length, out);
+                }
+                return null;
+            case 'S':
+                // STATS
+                if (startsWith(buf, off, len, STATS)) {
+                    writeStats(out);
+                    return Command.STATS;
+                }
+                // SCAN
+                else if (startsWith(buf, off, len, SCAN)) {
+                    scan(buf, off + SCAN.length, len - SCAN.length, out);
+                    return Command.SCAN;
+                }
+                // SUBSCRIBE
+                else if (startsWith(buf, off, len, SUBSCRIBE)) {
+                    probe.set(buf, off + SUBSCRIBE.length, len - SUBSCRIBE.length);
+                    out.write(pushes != null && pushes.subscribe(probe) ? SUBSCRIBE_OK : SUBSCRIBE_ERROR);
+                    return Command.SUBSCRIBE;
+                }
+                return null;
+            case 'W':
+                // WATCH
+                if (startsWith(buf, off, len, WATCH)) {
+                    probe.set(buf, off + WATCH.length, len - WATCH.length);
+                    out.write(pushes != null && pushes.watch(probe) ? WATCH_OK : WATCH_ERROR);
+                    return Command.WATCH;
+                }
+                return null;
+            case 'U':
+                // UNWATCH
+                if (startsWith(buf, off, len, UNWATCH)) {
+                    if (pushes == null) {
+                        out.write(UNWATCH_ERROR);
+                    } else {
+                        pushes.unwatch(probe.set(buf, off + UNWATCH.length, len - UNWATCH.length));
+                        out.write(UNWATCH_OK);
+                    }
+                    return Command.UNWATCH;
+                }
+                // UNSUBSCRIBE
+                else if (startsWith(buf, off, len, UNSUBSCRIBE)) {
+                    if (pushes == null) {
+                        out.write(UNSUBSCRIBE_ERROR);
+                    } else {
+                        pushes.unsubscribe(probe.set(buf, off + UNSUBSCRIBE.length, len - UNSUBSCRIBE.length));
+                        out.write(UNSUBSCRIBE_OK);
+                    }
+                    return Command.UNSUBSCRIBE;
+                }
+                return null;
+            case 'T':
+                // TRACKING
+                if (startsWith(buf, off, len, TRACKING)) {
+                    setTracking(buf, off + TRACKING.length, len - TRACKING.length, out);
+                    return Command.TRACKING;
+                }
+                return null;
+            default:
+                // No commands matched - no response
+                return null;
+        }
+    }
+
+    /**
+     * Stores the value line of a CAS if the key's version is the one
+     * expected, 0 meaning the key must not exist, and writes CAS: OK with
+     * the new version, or CAS: CONFLICT with the current one.
+     */
+    private void compareAndSet(ByteKey key, byte[] buf, int off, int len, OutputStream out) throws IOException {
+        if (readOnly || expectedVersion < 0) {
+            out.write(CAS_ERROR);
+            return;
+        }
+        // compressed, if it is to be, before the shard is locked
+        StoredValue candidate = storage.valueOf(Arrays.copyOfRange(buf, off, off + len));
+        updatedValue = null;
+        StoredValue result = storage.update(key, current -> {
+            long version = current == null ? 0 : current.version();
+            if (version != expectedVersion) {
+                return null;
+            }
+            updatedValue = candidate;
+            return updatedValue;
+        });
+        out.write(result != null && result == updatedValue ? CAS_OK : CAS_CONFLICT);
+        writeDecimal(out, result == null ? 0 : result.version());
+        out.write('\n');
+        releaseUpdate(result);
+    }
+
+    /**
+     * Adds the amount at the end of the line to the number stored under
+     * the key before it, treating a missing key as 0, and writes the result.
+     * @param up -- true for INCR, false for DECR
+     */
+    private void increment(boolean up, byte[] buf, int off, int len, OutputStream out) throws IOException {
+        int space = lastSpace(buf, off, off + len);
+        long amount = space < 0 ? -1 : parseNumber(buf, space + 1, off + len - space - 1);
+        if (readOnly || amount < 0) {
+            out.write(up ? INCR_ERROR : DECR_ERROR);
+            return;
+        }
+        long delta = up ? amount : -amount;
+        updatedValue = null;
+        StoredValue result = storage.update(probe.set(buf, off, space - off), current -> {
+            long n;
+            try {
+                n = Math.addExact(current == null ? 0 : parseSigned(current), delta);
+            } catch (NumberFormatException | ArithmeticException e) {
+                return null;
+            }
+            updatedValue = StoredValue.of(ascii(Long.toString(n)));
+            return updatedValue;
+        });
+        if (result != null && result == updatedValue) {
+            out.write(up ? INCR_HEADER : DECR_HEADER);
+            stats.bytesSent(result.writeTo(out, zeroCopyOut));
+            out.write('\n');
         } else {
-            // PUT
-            if (input.substring(0, 4).equals(Command.PUT.toString())) {
-                
-                System.out.println("FIRST PUT COMMAND OK");
-                this.newKey = input.substring(4, input.length());
-                System.out.println("The new key is: " + newKey + " of length " + newKey.length());
-                this.waitingForPutValue = true;
-                for (int i = 0; i < newKey.length(); i++) {
-                    char ch = newKey.charAt(i);
-                    int as_int = ch;
-                    System.out.println(as_int);
-                }
-                System.out.println("Waiting for put = " + waitingForPutValue);
-                return null;
-            }    
-            // GET
-            else if (input.substring(0, 4).equals(Command.GET.toString())) {
-                System.out.println("Client getting key");
-                String key = input.substring(4, input.length());
-                System.out.println("GET key = " + key);
-                for (int i = 0; i < key.length(); i++) {
-                    char ch = key.charAt(i);
-                    int as_int = ch;
-                    System.out.println(as_int);
-                }
-                if (storage.containsKey(key)) {
-                    output = storage.get(key);
-                } else {
-                    output = "GET: ERROR";
+            out.write(up ? INCR_ERROR : DECR_ERROR);
+        }
+        releaseUpdate(result);
+    }
+
+    /**
+     * Adds the value line of an APPEND to the end of the key's value,
+     * creating it if there is none, and writes the new length. Values
+     * held in files, and values which would grow beyond MAX_LINE_LENGTH,
+     * cannot be appended to.
+     */
+    private void append(ByteKey key, byte[] buf, int off, int len, OutputStream out) throws IOException {
+        if (readOnly) {
+            out.write(APPEND_ERROR);
+            return;
+        }
+        updatedValue = null;
+        StoredValue result = storage.update(key, current -> {
+            if (current != null && (current.isFileBacked() 
+                    || current.length() + len > LineReader.MAX_LINE_LENGTH)) {
+                return null;
+            }
+            byte[] joined;
+            if (current == null) {
+                joined = Arrays.copyOfRange(buf, off, off + len);
+            } else {
+                byte[] existing = current.bytes();
+                joined = Arrays.copyOf(existing, existing.length + len);
+                System.arraycopy(buf, off, joined, existing.length, len);
+            }
+            updatedValue = StoredValue.of(joined);
+            return updatedValue;
+        });
+        if (result != null && result == updatedValue) {
+            out.write(APPEND_OK);
+            writeDecimal(out, result.length());
+            out.write('\n');
+        } else {
+            out.write(APPEND_ERROR);
+        }
+        releaseUpdate(result);
+    }
+
+    private void releaseUpdate(StoredValue result) {
+        updatedValue = null;
+        if (result != null) {
+            result.release();
+        }
+    }
+
+    /**
+     * @return -- the non-negative decimal number in buf, or -1 if it is not one
+     */
+    private static long parseNumber(byte[] buf, int off, int len) {
+        if (len < 1 || len > 18) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = off; i < off + len; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return -1;
+            }
+            n = n * 10 + (buf[i] - '0');
+        }
+        return n;
+    }
+
+    private static boolean isDigits(byte[] buf, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return -- the value as a signed decimal number
+     * @throws NumberFormatException -- if it is not one, or is held in a file
+     */
+    private static long parseSigned(StoredValue value) throws IOException {
+        if (value.isFileBacked() || value.length() > 20) {
+            throw new NumberFormatException();
+        }
+        return Long.parseLong(new String(value.bytes(), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Turns tracking on or off for TRACKING ON or TRACKING OFF, which
+     * only a session with a push dispatcher attached supports.
+     */
+    private void setTracking(byte[] buf, int off, int len, OutputStream out) throws IOException {
+        boolean on = len == ON.length && startsWith(buf, off, len, ON);
+        boolean valid = on || (len == OFF.length && startsWith(buf, off, len, OFF));
+        if (pushes == null || !valid) {
+            out.write(TRACKING_ERROR);
+            return;
+        }
+        pushes.setTracking(on);
+        out.write(TRACKING_OK);
+    }
+
+    /**
+     * Parses the prefix, limit and cursor of a SCAN, lists the keys and
+     * writes the response. A page is one key longer than asked for, so
+     * that the last page can be told apart and given the cursor 0.
+     */
+    private void scan(byte[] buf, int off, int len, OutputStream out) throws IOException {
+        int cursorSpace = lastSpace(buf, off, off + len);
+        int limitSpace = cursorSpace < 0 ? -1 : lastSpace(buf, off, cursorSpace);
+        int limitStart = limitSpace + 1;
+        if (limitSpace < 0) {
+            // no prefix given at all
+            limitStart = off;
+        }
+        int limit = cursorSpace < 0 ? -1 : parseCount(buf, limitStart, cursorSpace - limitStart);
+        ByteKey after = cursorSpace < 0 ? null : parseCursor(buf, cursorSpace + 1, off + len - cursorSpace - 1);
+        if (limit < 1 || after == null || !storage.isOrdered()) {
+            out.write(SCAN_ERROR);
+            return;
+        }
+        ByteKey prefix = probe.set(buf, off, Math.max(0, limitSpace - off));
+        List<ByteKey> keys = storage.scan(prefix, after.length() == 0 ? null : after, limit + 1);
+        int count = Math.min(keys.size(), limit);
+        out.write(SCAN_HEADER);
+        if (keys.size() > limit) {
+            ByteKey last = keys.get(limit - 1);
+            for (int i = 0; i < last.length; i++) {
+                int b = last.bytes[last.offset + i] & 0xFF;
+                out.write(HEX_DIGITS[b >>> 4]);
+                out.write(HEX_DIGITS[b & 0xF]);
+            }
+        } else {
+            out.write('0');
+        }
+        out.write(' ');
+        writeDecimal(out, count);
+        out.write('\n');
+        for (int i = 0; i < count; i++) {
+            ByteKey key = keys.get(i);
+            out.write(key.bytes, key.offset, key.length);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * @return -- the position of the last space in buf[from, to), or -1
+     */
+    private static int lastSpace(byte[] buf, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buf[i] == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return -- the key a SCAN cursor stands for, an empty key for the 
+     * cursor 0, or null if it is not a valid cursor
+     */
+    private static ByteKey parseCursor(byte[] buf, int off, int len) {
+        if (len == 1 && buf[off] == '0') {
+            return new ByteKey(new byte[0]);
+        }
+        if (len == 0 || len % 2 != 0) {
+            return null;
+        }
+        byte[] key = new byte[len / 2];
+        for (int i = 0; i < key.length; i++) {
+            int high = Character.digit(buf[off + 2 * i], 16);
+            int low = Character.digit(buf[off + 2 * i + 1], 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            key[i] = (byte) (high << 4 | low);
+        }
+        return new ByteKey(key);
+    }
+
+    /**
+     * Writes STATS: n followed by n lines, each a name and a value.
+     */
+    private void writeStats(OutputStream out) throws IOException {
+        String summary = stats.getSummary();
+        int lines = 0;
+        for (int i = 0; i < summary.length(); i++) {
+            if (summary.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        out.write(STATS_HEADER);
+        writeDecimal(out, lines);
+        out.write('\n');
+        out.write(ascii(summary));
+    }
+
+    /**
+     * Reads the chunks of a PUTC straight from the session's input into a
+     * ValueWriter, stores the value under the pending key and responds.
+     * @throws IOException -- if a chunk length is invalid, the value is too
+     * long, or the session has no raw input attached
+     */
+    private void receiveChunked(OutputStream out) throws IOException {
+        if (rawInput == null) { throw new IOException("PUTC is only supported on a socket session"); }
+        ValueWriter value = new ValueWriter();
+        try {
+            while (true) {
+                if (!rawInput.readLine()) {
+                    throw new EOFException("Stream ended inside a chunked value");
+                }
+                long size = parseChunkSize(rawInput.buf(), rawInput.lineStart(), rawInput.lineLength());
+                if (size < 0) {
+                    throw new IOException("Invalid chunk length");
+                }
+                if (size == 0) {
+                    break;
                 }
+                if (value.length() + size > MAX_CHUNKED_LENGTH) {
+                    throw new IOException("Chunked value too long");
+                }
+                rawInput.copyBytes(size, readOnly ? OutputStream.nullOutputStream() : value);
+            }
+            if (readOnly) {
+                out.write(PUTC_ERROR);
+                return;
+            }
+            long length = value.length();
+            storage.put(pendingKeyProbe.set(pendingKey, 0, pendingKeyLength), value.finish());
+            out.write(PUTC_OK);
+            writeDecimal(out, length);
+            out.write('\n');
+        } finally {
+            value.close();
+        }
+    }
+
+    /**
+     * @return -- the hex chunk length in buf, which may be followed by a
+     * carriage return, or -1 if it is not one
+     */
+    private static long parseChunkSize(byte[] buf, int off, int len) {
+        if (len > 0 && buf[off + len - 1] == '\r') {
+            len--;
+        }
+        if (len == 0 || len > 8) {
+            return -1;
+        }
+        long size = 0;
+        for (int i = off; i < off + len; i++) {
+            int digit = Character.digit(buf[i], 16);
+            if (digit < 0) {
+                return -1;
             }
-            // DELETE 
-            else if (input.substring(0, 7).equals(Command.DELETE.toString())) {
-                System.out.println("Client deleting key");
-                String key = input.substring(7, input.length());
-                if (storage.containsKey(key)) {
-                    storage.remove(key);
-                    output = "DELETE: OK";
+            size = size * 16 + digit;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a value looked up in storage and then releases it. Values in
+     * files go straight to the socket's channel if there is one.
+     */
+    private void writeValue(StoredValue value, OutputStream out) throws IOException {
+        try {
+            stats.bytesSent(value.writeTo(out, zeroCopyOut));
+        } finally {
+            value.release();
+        }
+    }
+
+    private static boolean startsWith(byte[] buf, int off, int len, byte[] prefix) {
+        return len >= prefix.length 
+            && Arrays.equals(buf, off, off + prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * Copies the key of a PUT into the reusable pending key buffer, to be
+     * used when the value line arrives.
+     */
+    private void savePendingKey(byte[] buf, int off, int len) {
+        if (pendingKey.length < len) {
+            pendingKey = new byte[Math.max(len, 2 * pendingKey.length)];
+        }
+        System.arraycopy(buf, off, pendingKey, 0, len);
+        pendingKeyLength = len;
+    }
+
+    /**
+     * The main loop for a binary session. 
+     * Takes one whole frame from the buffer, if there is one, and writes
+     * the response frame to out. Keys and values are copied straight out
+     * of the buffer without being decoded into Strings.
+     * @param in -- a heap buffer in read mode holding frames received from the client
+     * @param out -- where the response frame is written
+     * @return -- false if the buffer does not yet hold a whole frame, in which 
+     * case nothing is consumed
+     * @throws IOException -- if the frame is invalid, or writing the response fails
+     */
+    public boolean processFrame(ByteBuffer in, OutputStream out) throws IOException {
+        if (!isConnected || !isBinary) { throw new IOException(); }
+        if (!FrameCodec.hasFrame(in)) {
+            return false;
+        }
+        int start = in.position();
+        byte opcode = FrameCodec.opcode(in, start);
+        int keyLength = FrameCodec.keyLength(in, start);
+        int valueLength = FrameCodec.valueLength(in, start);
+        int requestId = FrameCodec.requestId(in, start);
+        int keyStart = start + FrameCodec.HEADER_LENGTH;
+        in.position(keyStart + keyLength + valueLength);
+        long startNanos = System.nanoTime();
+        Command command;
+
+        isDisconnect = false;
+        switch (opcode) {
+            case FrameCodec.OP_GET: {
+                StoredValue value = storage.get(frameKey(in, keyStart, keyLength));
+                if (value != null && value.length() > FrameCodec.MAX_VALUE_LENGTH) {
+                    // too large for a frame, it can only be read with GETC
+                    value.release();
+                    value = null;
+                }
+                if (value == null) {
+                    FrameCodec.writeHeader(out, frameHeader, opcode, FrameCodec.STATUS_ERROR, 0, 0, requestId);
                 } else {
-                    output = "DELETE: ERROR";
+                    FrameCodec.writeHeader(out, frameHeader, opcode, FrameCodec.STATUS_OK, 0, 
+                        (int) value.length(), requestId);
+                    writeValue(value, out);
+                }
+                command = Command.GET;
+                break;
+            }
+            case FrameCodec.OP_PUT: {
+                if (readOnly) {
+                    FrameCodec.writeHeader(out, frameHeader, opcode, FrameCodec.STATUS_ERROR, 0, 0, requestId);
+                    command = Command.PUT;
+                    break;
                 }
+                byte[] value = new byte[valueLength];
+                in.get(keyStart + keyLength, value);
+                storage.put(frameKey(in, keyStart, keyLength), value);
+                FrameCodec.writeHeader(out, frameHeader, opcode, FrameCodec.STATUS_OK, 0, 0, requestId);
+                command = Command.PUT;
+                break;
             }
-            // DISCONNECT
-            else if (input.substring(0, 10).equals(Command.DISCONNECT.toString())) {
-                System.out.println("client disconnecting.");
+            case FrameCodec.OP_DELETE: {
+                byte status = !readOnly && storage.delete(frameKey(in, keyStart, keyLength)) 
+                    ? FrameCodec.STATUS_OK : FrameCodec.STATUS_ERROR;
+                FrameCodec.writeHeader(out, frameHeader, opcode, status, 0, 0, requestId);
+                command = Command.DELETE;
+                break;
+            }
+            case FrameCodec.OP_DISCONNECT:
                 this.isDisconnect = true;
-                output = "DISCONNECT: OK";
+                FrameCodec.writeHeader(out, frameHeader, opcode, FrameCodec.STATUS_OK, 0, 0, requestId);
+                command = Command.DISCONNECT;
+                break;
+            case FrameCodec.OP_STATS: {
+                byte[] summary = ascii(stats.getSummary());
+                FrameCodec.writeHeader(out, frameHeader, opcode, FrameCodec.STATUS_OK, 0, summary.length, requestId);
+                out.write(summary);
+                command = Command.STATS;
+                break;
             }
-            
-            // No commands matched - error
-            else {
-                // throw new IOException();
+            default:
+                throw new IOException("Unknown opcode " + opcode);
+        }
+        stats.record(command, System.nanoTime() - startNanos);
+        return true;
+    }
+
+    /**
+     * Points the probe at a key inside the frame buffer. The buffer must
+     * be a heap buffer, as used by MultiServerThread.
+     */
+    private ByteKey frameKey(ByteBuffer in, int keyStart, int keyLength) {
+        return probe.set(in.array(), in.arrayOffset() + keyStart, keyLength);
+    }
+
+    /**
+     * Handles the first line of a batch command. Writes the error response
+     * if the count is invalid, the response straight away if the count is 0,
+     * otherwise nothing while the key and value lines are collected.
+     * @return -- the command if it has completed, null while collecting lines
+     */
+    private Command startBatch(Command command, byte[] buf, int off, int len, OutputStream out) throws IOException {
+        long count = parseNumber(buf, off, len);
+        if (count < 0 && len > 0 && isDigits(buf, off, len)) {
+            // a number, but too long to parse
+            count = Long.MAX_VALUE;
+        }
+        if (count < 0) {
+            out.write(command == Command.MPUT ? MPUT_ERROR : command == Command.MGET ? MGET_ERROR : MDELETE_ERROR);
+            return command;
+        }
+        if (count > Integer.MAX_VALUE / 2) {
+            throw new IOException("Batch count too large: " + count);
+        }
+        batchCommand = command;
+        // the lines of a batch with too many keys are only counted, as for one with too many bytes
+        batchTooLarge = count > MAX_BATCH;
+        batchLinesRemaining = (int) (command == Command.MPUT ? 2 * count : count);
+        if (batchLinesRemaining == 0) {
+            return executeBatch(out);
+        }
+        return null;
+    }
+
+    /**
+     * @return -- the decimal count in buf, or -1 if it is not a number from 0 to MAX_BATCH
+     */
+    private static int parseCount(byte[] buf, int off, int len) {
+        if (len == 0 || len > 7) {
+            return -1;
+        }
+        int count = 0;
+        for (int i = off; i < off + len; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return -1;
             }
+            count = count * 10 + (buf[i] - '0');
         }
-        return output;
+        return count <= MAX_BATCH ? count : -1;
+    }
+
+    /**
+     * Collects one key or value line of a batch command, executing the
+     * batch once the last line has arrived.
+     * @return -- the command if it has completed, null while collecting lines
+     */
+    private Command collectBatchLine(byte[] buf, int off, int len, OutputStream out) throws IOException {
+        batchBytes += len;
+        if (!batchTooLarge && batchBytes > MAX_BATCH_BYTES) {
+            batchTooLarge = true;
+            batchKeys.clear();
+            batchValues.clear();
+        }
+        if (!batchTooLarge) {
+            byte[] line = Arrays.copyOfRange(buf, off, off + len);
+            if (batchCommand == Command.MPUT && batchLinesRemaining % 2 == 1) {
+                batchValues.add(line);
+            } else {
+                batchKeys.add(new ByteKey(line));
+            }
+        }
+        batchLinesRemaining--;
+        if (batchLinesRemaining == 0) {
+            return executeBatch(out);
+        }
+        return null;
+    }
+
+    /**
+     * Executes the collected batch against the storage, which groups the
+     * keys by shard, and writes the single response for it.
+     */
+    private Command executeBatch(OutputStream out) throws IOException {
+        Command command = batchCommand;
+        if (batchTooLarge) {
+            out.write(command == Command.MPUT ? MPUT_ERROR : command == Command.MGET ? MGET_ERROR : MDELETE_ERROR);
+            endBatch();
+            return command;
+        }
+        switch (command) {
+            case MPUT:
+                if (readOnly) {
+                    out.write(MPUT_ERROR);
+                    break;
+                }
+                storage.putAll(batchKeys, batchValues);
+                out.write(MPUT_OK);
+                writeDecimal(out, batchKeys.size());
+                out.write('\n');
+                break;
+            case MGET:
+                if (pushes != null) {
+                    for (ByteKey key : batchKeys) {
+                        pushes.track(key);
+                    }
+                }
+                StoredValue[] values = storage.getAll(batchKeys);
+                out.write(MGET_HEADER);
+                writeDecimal(out, values.length);
+                out.write('\n');
+                try {
+                    for (int i = 0; i < values.length; i++) {
+                        if (values[i] == null) {
+                            out.write(GET_ERROR);
+                        } else {
+                            StoredValue value = values[i];
+                            values[i] = null;
+                            writeValue(value, out);
+                            out.write('\n');
+                        }
+                    }
+                } finally {
+                    // release whatever was not sent if writing failed
+                    for (StoredValue value : values) {
+                        if (value != null) {
+                            value.release();
+                        }
+                    }
+                }
+                break;
+            default:
+                if (readOnly) {
+                    out.write(MDELETE_ERROR);
+                    break;
+                }
+                int deleted = storage.deleteAll(batchKeys);
+                out.write(MDELETE_OK);
+                writeDecimal(out, deleted);
+                out.write('\n');
+                break;
+        }
+        endBatch();
+        return command;
+    }
+
+    private void endBatch() {
+        batchCommand = null;
+        batchKeys.clear();
+        batchValues.clear();
+        batchBytes = 0;
+        batchTooLarge = false;
+    }
+
+    /**
+     * Writes n in decimal ASCII using the reusable scratch buffer.
+     */
+    private void writeDecimal(OutputStream out, long n) throws IOException {
+        int pos = decimal.length;
+        do {
+            decimal[--pos] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n > 0);
+        out.write(decimal, pos, decimal.length - pos);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return -- true if the next line starts a command, rather than being
+     * the value of a PUT or a line of a batch command
+     */
+    boolean expectsCommand() {
+        return waitingForValue == null && batchCommand == null;
     }
 
     /**
@@ -195,4 +1367,26 @@ public class DavidPaulProtocol {
     boolean isDisconnect() {
         return this.isDisconnect;
     }
+
+    /**
+     * Checks to see if the client asked for binary frames when it connected.
+     * @return boolean -- true if processFrame should be used instead of processInput
+     */
+    boolean isBinary() {
+        return this.isBinary;
+    }
+
+    /**
+     * @return -- true if the client asked for its session to be compressed when it connected
+     */
+    boolean isDeflate() {
+        return this.isDeflate;
+    }
+
+    /**
+     * @return -- true if the client asked for checksums of its responses when it connected
+     */
+    boolean isChecksummed() {
+        return this.isChecksummed;
+    }
 }
@@ -0,0 +1,110 @@
+package protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary framing used by sessions which connect with
+ * CONNECT+BINARY clientID.
+ *
+ * Every request and response is a fixed 12 byte header followed by the
+ * raw key bytes and then the raw value bytes. All numbers are big-endian.
+ *
+ *   offset  size  field
+ *   0       1     opcode       GET, PUT, DELETE, DISCONNECT, STATS or CHECKSUM
+ *   1       1     status       0 in requests, STATUS_OK or STATUS_ERROR in responses
+ *   2       2     key length   unsigned, at most MAX_KEY_LENGTH
+ *   4       4     value length at most MAX_VALUE_LENGTH
+ *   8       4     request id   chosen by the client, echoed in the response
+ *
+ * Responses echo the opcode and request id of their request and carry
+ * no key; a successful GET carries the value, and STATS carries the 
+ * same "name value" lines as the text STATS command. A session which
+ * connected with CONNECT+BINARY+CRC is also sent CHECKSUM frames, which
+ * answer no request, see ChecksumOutputStream.
+ */
+public final class FrameCodec {
+
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_KEY_LENGTH = 0xFFFF;
+    public static final int MAX_VALUE_LENGTH = 64 * 1024 * 1024;
+
+    public static final byte OP_GET = 1;
+    public static final byte OP_PUT = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_DISCONNECT = 4;
+    public static final byte OP_STATS = 5;
+    public static final byte OP_CHECKSUM = 6;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @param buffer -- a buffer in read mode
+     * @return -- true if the buffer holds at least one whole frame from its position
+     * @throws IOException -- if the frame header is invalid
+     */
+    public static boolean hasFrame(ByteBuffer buffer) throws IOException {
+        return buffer.remaining() >= HEADER_LENGTH && buffer.remaining() >= frameLength(buffer);
+    }
+
+    /**
+     * @param buffer -- a buffer holding a whole header at its position
+     * @return -- the length of the frame, header included
+     * @throws IOException -- if the lengths in the header are out of range
+     */
+    public static int frameLength(ByteBuffer buffer) throws IOException {
+        int p = buffer.position();
+        int keyLength = keyLength(buffer, p);
+        int valueLength = valueLength(buffer, p);
+        if (valueLength < 0 || valueLength > MAX_VALUE_LENGTH) {
+            throw new IOException("Frame value length out of range: " + valueLength);
+        }
+        return HEADER_LENGTH + keyLength + valueLength;
+    }
+
+    public static byte opcode(ByteBuffer buffer, int frameStart) {
+        return buffer.get(frameStart);
+    }
+
+    public static byte status(ByteBuffer buffer, int frameStart) {
+        return buffer.get(frameStart + 1);
+    }
+
+    public static int keyLength(ByteBuffer buffer, int frameStart) {
+        return buffer.getShort(frameStart + 2) & 0xFFFF;
+    }
+
+    public static int valueLength(ByteBuffer buffer, int frameStart) {
+        return buffer.getInt(frameStart + 4);
+    }
+
+    public static int requestId(ByteBuffer buffer, int frameStart) {
+        return buffer.getInt(frameStart + 8);
+    }
+
+    /**
+     * Writes a header into the scratch array, which must be at least
+     * HEADER_LENGTH long, and then to out.
+     */
+    public static void writeHeader(OutputStream out, byte[] scratch, byte opcode, byte status,
+            int keyLength, int valueLength, int requestId) throws IOException {
+        scratch[0] = opcode;
+        scratch[1] = status;
+        scratch[2] = (byte) (keyLength >>> 8);
+        scratch[3] = (byte) keyLength;
+        putInt(scratch, 4, valueLength);
+        putInt(scratch, 8, requestId);
+        out.write(scratch, 0, HEADER_LENGTH);
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+}
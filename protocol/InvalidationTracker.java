@@ -0,0 +1,107 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which sessions may hold which keys in a client-side cache,
+ * so that the PushDispatcher can push them an invalidation when one of
+ * the keys is stored or deleted.
+ *
+ * A session with tracking on has every key it reads with GET or MGET
+ * remembered. The key is remembered before it is read, so a change made
+ * at any time after the read is pushed. Each key is pushed once and then
+ * forgotten, until the session reads it again. At most MAX_TRACKED_KEYS
+ * are remembered, over all sessions; beyond that the tracker forgets an
+ * arbitrary key, which is pushed to its sessions as though it had changed.
+ * The limit is set with the system property protocol.tracking.maxKeys.
+ *
+ * Each subscriber also keeps the set of keys it is tracked for, changed
+ * only under the same lock as the key's entry here, so that when its
+ * session ends forget can remove it from exactly those keys.
+ */
+final class InvalidationTracker {
+
+    static final int MAX_TRACKED_KEYS = Integer.getInteger("protocol.tracking.maxKeys", 1000000);
+
+    // each set, and the subscribers' sets of keys, are only changed inside compute
+    private final ConcurrentHashMap<ByteKey, Set<PushDispatcher.Subscriber>> tracked = new ConcurrentHashMap<>();
+
+    /**
+     * Remembers that a subscriber is about to read key.
+     * @param key -- the key, which may be a probe
+     * @return -- a key forgotten to make room and the subscribers which
+     * were tracking it, for them to be pushed an invalidation, or null
+     */
+    Map.Entry<ByteKey, Set<PushDispatcher.Subscriber>> track(ByteKey key, PushDispatcher.Subscriber subscriber) {
+        ByteKey kept = key.retain();
+        tracked.compute(kept, (k, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new HashSet<>(2);
+            }
+            subscribers.add(subscriber);
+            subscriber.trackedKeys().add(kept);
+            return subscribers;
+        });
+        if (tracked.size() > MAX_TRACKED_KEYS) {
+            Iterator<ByteKey> any = tracked.keySet().iterator();
+            if (any.hasNext()) {
+                ByteKey evicted = any.next();
+                Set<PushDispatcher.Subscriber> subscribers = take(evicted);
+                if (subscribers != null) {
+                    return Map.entry(evicted, subscribers);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forgets a key which has changed.
+     * @param key -- the key, which may be a probe
+     * @return -- the subscribers which were tracking it, or null if none were
+     */
+    Set<PushDispatcher.Subscriber> take(ByteKey key) {
+        if (tracked.isEmpty()) {
+            return null;
+        }
+        List<Set<PushDispatcher.Subscriber>> taken = new ArrayList<>(1);
+        tracked.computeIfPresent(key, (k, subscribers) -> {
+            for (PushDispatcher.Subscriber subscriber : subscribers) {
+                subscriber.trackedKeys().remove(k);
+            }
+            taken.add(subscribers);
+            return null;
+        });
+        return taken.isEmpty() ? null : taken.get(0);
+    }
+
+    /**
+     * Forgets every key a subscriber is tracked for, once its session has ended.
+     */
+    void forget(PushDispatcher.Subscriber subscriber) {
+        for (ByteKey key : subscriber.trackedKeys()) {
+            tracked.computeIfPresent(key, (k, subscribers) -> {
+                subscribers.remove(subscriber);
+                subscriber.trackedKeys().remove(k);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+    boolean isEmpty() {
+        return tracked.isEmpty();
+    }
+
+    /**
+     * @return -- the number of keys remembered for some session
+     */
+    int size() {
+        return tracked.size();
+    }
+}
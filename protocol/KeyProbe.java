@@ -0,0 +1,35 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * A reusable ByteKey which points at a range of a receive buffer, so a
+ * session can look keys up without allocating. A probe is only valid
+ * until the buffer is next refilled, so anything which keeps a key must
+ * call retain() to take an immutable copy.
+ */
+final class KeyProbe extends ByteKey {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    KeyProbe() {
+        super(EMPTY);
+    }
+
+    /**
+     * Points the probe at buf[offset, offset + length).
+     * @return -- this probe
+     */
+    KeyProbe set(byte[] buf, int offset, int length) {
+        this.bytes = buf;
+        this.offset = offset;
+        this.length = length;
+        this.hash = hashOf(buf, offset, length);
+        return this;
+    }
+
+    @Override
+    public ByteKey retain() {
+        return new ByteKey(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+}
@@ -0,0 +1,108 @@
+package protocol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of latencies in nanoseconds, in
+ * the style of HdrHistogram.
+ *
+ * Values below 32 get a bucket each. Above that each power of two is
+ * split into 16 equal buckets, so any recorded value is reported to
+ * within about 6% whatever its magnitude, using only 1024 counters.
+ *
+ * Counters are striped by thread so that sessions recording the same
+ * command at the same time rarely touch the same cache line.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_COUNT;
+    private static final int BUCKETS = 1024;
+    private static final int STRIPES = 8;
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * @param nanos -- the latency to record, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        stripes[stripe].getAndIncrement(bucketOf(Math.max(0, nanos)));
+    }
+
+    /**
+     * @return -- the number of values recorded
+     */
+    public long count() {
+        long count = 0;
+        for (long c : snapshot()) {
+            count += c;
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile -- from 0 to 100, e.g. 99.9
+     * @return -- the value at or below which the given percentage of
+     * recorded values fall, or 0 if nothing has been recorded
+     */
+    public long percentile(double percentile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(BUCKETS - 1);
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Below LINEAR_LIMIT the value is its own bucket. Above it the value
+     * is shifted right until it has SUB_BITS + 1 significant bits, and
+     * the bucket is found from the shift and those bits.
+     */
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        int top = (int) (value >>> shift);   // from SUB_COUNT to 2 * SUB_COUNT - 1
+        return Math.min(BUCKETS - 1, (shift + 1) * SUB_COUNT + (top - SUB_COUNT));
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long top = bucket % SUB_COUNT + SUB_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,184 @@
+package protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads newline terminated lines from an input stream into a reusable
+ * byte buffer, replacing a read() call per character.
+ *
+ * Input is read in bulk and scanned for the newline in place. After
+ * readLine() returns true the line is buf()[lineStart(), lineStart() + lineLength()),
+ * not including the newline, and stays valid until the next call.
+ * The buffer only grows if a single line is longer than it.
+ *
+ * Before blocking on the socket for more input, the reader flushes the
+ * given Flushable. Responses therefore pile up while the client has
+ * more commands waiting, and are written together once it has none.
+ */
+public class LineReader {
+
+    public static final int MAX_LINE_LENGTH = FrameCodec.MAX_VALUE_LENGTH;
+
+    private final InputStream in;
+    private final Flushable beforeBlocking;
+    private byte[] buf;
+    private int start;      // the first unconsumed byte
+    private int limit;      // one past the last byte read in
+    private int scanned;    // bytes from start already known not to contain a newline
+    private int lineStart;
+    private int lineLength;
+
+    /**
+     * @param in -- the stream to read from
+     * @param bufferSize -- the initial size of the buffer
+     * @param beforeBlocking -- flushed whenever the reader is about to wait for input
+     */
+    public LineReader(InputStream in, int bufferSize, Flushable beforeBlocking) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+        this.beforeBlocking = beforeBlocking;
+    }
+
+    /**
+     * Reads the next line.
+     * @return -- false if the stream ended before another whole line arrived
+     * @throws IOException -- if the line contains a byte above ASCII 127,
+     * is longer than MAX_LINE_LENGTH, or the stream fails
+     */
+    public boolean readLine() throws IOException {
+        while (true) {
+            for (int i = start + scanned; i < limit; i++) {
+                byte b = buf[i];
+                if (b == '\n') {
+                    lineStart = start;
+                    lineLength = i - start;
+                    start = i + 1;
+                    scanned = 0;
+                    return true;
+                }
+                if (b < 0) {
+                    // only ASCII is accepted
+                    throw new IOException("Non-ASCII byte in input");
+                }
+            }
+            scanned = limit - start;
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    public byte[] buf() {
+        return buf;
+    }
+
+    public int lineStart() {
+        return lineStart;
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+
+    /**
+     * @return -- the current line decoded as a String, for the few places which need one
+     */
+    public String lineAsString() {
+        return new String(buf, lineStart, lineLength, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Moves any bytes read past the last line into the given buffer, for
+     * a session which switches to binary frames after its CONNECT line.
+     * @param target -- a buffer in write mode with room for the bytes
+     */
+    public void drainTo(ByteBuffer target) {
+        target.put(buf, start, limit - start);
+        start = limit;
+        scanned = 0;
+    }
+
+    /**
+     * Copies the next n bytes of input to out as they are, without
+     * looking for lines, for the raw data of a chunked value. Only the
+     * reader's own buffer is used, however large n is.
+     * @param n -- the number of bytes to copy
+     * @param out -- where the bytes are written
+     * @throws EOFException -- if the stream ends first
+     */
+    public void copyBytes(long n, OutputStream out) throws IOException {
+        while (n > 0) {
+            if (start == limit) {
+                start = 0;
+                limit = 0;
+                if (in.available() == 0) {
+                    beforeBlocking.flush();
+                }
+                int read = in.read(buf, 0, buf.length);
+                if (read == -1) {
+                    throw new EOFException("Stream ended inside a chunk");
+                }
+                limit = read;
+            }
+            int count = (int) Math.min(n, limit - start);
+            out.write(buf, start, count);
+            start += count;
+            n -= count;
+        }
+        scanned = 0;
+    }
+
+    /**
+     * @return -- true if bytes have been read which are not yet part of a
+     * line returned, which when the reader is about to wait for more input
+     * means a line has only partly arrived
+     */
+    public boolean hasPartialLine() {
+        return start < limit;
+    }
+
+    /**
+     * @return -- the stream this reader reads from
+     */
+    public InputStream stream() {
+        return in;
+    }
+
+    /**
+     * Reads more input into the buffer, first compacting or growing it
+     * if it is full.
+     * @return -- false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (start == limit) {
+            // everything has been consumed, start again at the front
+            start = 0;
+            limit = 0;
+        } else if (limit == buf.length) {
+            int unconsumed = limit - start;
+            if (unconsumed == buf.length) {
+                if (buf.length >= MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                byte[] larger = new byte[Math.min(MAX_LINE_LENGTH, buf.length * 2)];
+                System.arraycopy(buf, start, larger, 0, unconsumed);
+                buf = larger;
+            } else {
+                System.arraycopy(buf, start, buf, 0, unconsumed);
+            }
+            start = 0;
+            limit = unconsumed;
+        }
+        if (in.available() == 0) {
+            beforeBlocking.flush();
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n == -1) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+}
@@ -0,0 +1,255 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives load against a Server running the DavidPaulProtocol and reports
+ * throughput and latency percentiles once per reporting interval and for
+ * the whole run.
+ *
+ * Each of N sessions runs on its own thread with its own connection and
+ * sends a random mix of GET, PUT and DELETE over a fixed key space.
+ *
+ * Closed loop (no -rate): each session sends its next request as soon as
+ * the last response arrives, which finds the maximum throughput.
+ *
+ * Open loop (-rate r): requests are scheduled at a fixed total rate of r
+ * per second, spread over the sessions. Latency is measured from when a
+ * request was scheduled to be sent rather than when it actually was, so
+ * time spent queued behind a slow response is counted instead of hidden
+ * (coordinated omission correction).
+ *
+ * Unless -host is given, a MultiServer is started inside this process
+ * on a free port and the load is run against that.
+ *
+ * Usage: java protocol.LoadGenerator [-option value]...
+ *   -host h          server host (default: start a local server)
+ *   -port p          server port (default 7 with -host)
+ *   -sessions n      concurrent sessions (default 16)
+ *   -duration s      seconds to run for (default 10)
+ *   -mix g:p:d       relative weights of GET, PUT and DELETE (default 80:15:5)
+ *   -keys n          size of the key space (default 10000)
+ *   -values min-max  value sizes in bytes (default 16-256)
+ *   -rate r          total requests per second, open loop (default: closed loop)
+ *   -report s        seconds between reports (default 1)
+ */
+public class LoadGenerator {
+
+    private String host;
+    private int port = 7;
+    private int sessions = 16;
+    private int durationSeconds = 10;
+    private int getWeight = 80;
+    private int putWeight = 15;
+    private int deleteWeight = 5;
+    private int keySpace = 10000;
+    private int minValueSize = 16;
+    private int maxValueSize = 256;
+    private double rate;
+    private int reportSeconds = 1;
+
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+    private final LongAdder errors = new LongAdder();
+    private String valueSource;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            System.err.println("Usage: java protocol.LoadGenerator [-host h] [-port p] [-sessions n] "
+                + "[-duration s] [-mix g:p:d] [-keys n] [-values min-max] [-rate r] [-report s]");
+            System.exit(1);
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-host": host = value; break;
+                case "-port": port = Integer.parseInt(value); break;
+                case "-sessions": sessions = Integer.parseInt(value); break;
+                case "-duration": durationSeconds = Integer.parseInt(value); break;
+                case "-keys": keySpace = Integer.parseInt(value); break;
+                case "-rate": rate = Double.parseDouble(value); break;
+                case "-report": reportSeconds = Integer.parseInt(value); break;
+                case "-mix": {
+                    String[] w = value.split(":");
+                    getWeight = Integer.parseInt(w[0]);
+                    putWeight = Integer.parseInt(w[1]);
+                    deleteWeight = Integer.parseInt(w[2]);
+                    break;
+                }
+                case "-values": {
+                    String[] range = value.split("-");
+                    minValueSize = Integer.parseInt(range[0]);
+                    maxValueSize = Integer.parseInt(range[1]);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if (args.length % 2 != 0) { throw new IllegalArgumentException("missing value for " + args[args.length - 1]); }
+        if (sessions < 1 || keySpace < 1 || durationSeconds < 1 || reportSeconds < 1) {
+            throw new IllegalArgumentException("counts and times must be positive");
+        }
+        if (minValueSize < 0 || maxValueSize < minValueSize) {
+            throw new IllegalArgumentException("bad value size range");
+        }
+        if (getWeight + putWeight + deleteWeight <= 0) {
+            throw new IllegalArgumentException("mix must have a positive weight");
+        }
+    }
+
+    private void run() throws Exception {
+        if (host == null) {
+            startLocalServer();
+        }
+        StringBuilder values = new StringBuilder(maxValueSize);
+        for (int i = 0; i < maxValueSize; i++) {
+            values.append((char) ('a' + i % 26));
+        }
+        valueSource = values.toString();
+        preload();
+
+        System.out.println("Running " + sessions + " sessions against " + host + ":" + port + " for "
+            + durationSeconds + "s, " + (rate > 0 ? "open loop at " + rate + "/s" : "closed loop"));
+        System.out.println(String.format("%8s %10s %10s %10s %10s %10s %8s",
+            "time(s)", "ops/s", "p50(us)", "p99(us)", "p999(us)", "max(us)", "errors"));
+
+        Thread[] workers = new Thread[sessions];
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            final int id = i;
+            workers[i] = new Thread(() -> session(id, start), "LoadGenerator-" + i);
+            workers[i].start();
+        }
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start;
+        while ((nextReport += TimeUnit.SECONDS.toNanos(reportSeconds)) <= end) {
+            LockSupport.parkNanos(nextReport - System.nanoTime());
+            LatencyHistogram h = interval.getAndSet(new LatencyHistogram());
+            report(TimeUnit.NANOSECONDS.toSeconds(nextReport - start), h, reportSeconds);
+        }
+        LockSupport.parkNanos(end - System.nanoTime());
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.println("Total:");
+        report(durationSeconds, total, durationSeconds);
+    }
+
+    private void report(long seconds, LatencyHistogram h, double periodSeconds) {
+        System.out.println(String.format("%8d %10.0f %10d %10d %10d %10d %8d",
+            seconds, h.count() / periodSeconds, h.percentile(50) / 1000, h.percentile(99) / 1000,
+            h.percentile(99.9) / 1000, h.percentile(100) / 1000, errors.sum()));
+    }
+
+    /**
+     * Starts a MultiServer in this process on a free port.
+     */
+    private void startLocalServer() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+        host = "localhost";
+        port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        Thread server = new Thread(() -> {
+            try {
+                MultiServer.listen(serverChannel);
+            } catch (IOException e) {
+                // the process is exiting
+            }
+        }, "LoadGenerator-server");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    /**
+     * Stores a value under every key so that GETs find something.
+     */
+    private void preload() throws IOException {
+        Client client = Client.open(host, port, 5000);
+        try {
+            client.request("CONNECT LoadGenerator-preload");
+            Map<String, String> batch = new LinkedHashMap<>();
+            for (int k = 0; k < keySpace; k++) {
+                batch.put("key" + k, randomValue(ThreadLocalRandom.current()));
+                if (batch.size() == 1000 || k == keySpace - 1) {
+                    client.mput(batch);
+                    batch.clear();
+                }
+            }
+            client.request("DISCONNECT");
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * The loop run by each session's thread.
+     */
+    private void session(int id, long start) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // in open loop mode each session sends every sessions/rate seconds,
+        // staggered so the sessions do not all send at once
+        long period = rate > 0 ? (long) (1e9 * sessions / rate) : 0;
+        long intended = start + (period * id) / sessions;
+        Client client = null;
+        try {
+            client = Client.open(host, port, 5000);
+            client.request("CONNECT LoadGenerator-" + id);
+            int weights = getWeight + putWeight + deleteWeight;
+            while (running) {
+                if (period > 0) {
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    intended = System.nanoTime();
+                }
+                String key = "key" + random.nextInt(keySpace);
+                int pick = random.nextInt(weights);
+                if (pick < getWeight) {
+                    client.request("GET " + key);
+                } else if (pick < getWeight + putWeight) {
+                    client.request("PUT " + key, randomValue(random));
+                } else {
+                    client.request("DELETE " + key);
+                }
+                long latency = System.nanoTime() - intended;
+                total.record(latency);
+                interval.get().record(latency);
+                intended += period;
+            }
+            client.request("DISCONNECT");
+        } catch (IOException e) {
+            errors.increment();
+            System.err.println("Session " + id + " failed: " + e.getMessage());
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private String randomValue(ThreadLocalRandom random) {
+        return valueSource.substring(0, random.nextInt(minValueSize, maxValueSize + 1));
+    }
+}
@@ -0,0 +1,265 @@
+package protocol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, levelled logging for the server.
+ *
+ * Log calls below the configured level return after a single comparison.
+ * Enabled calls claim a slot in a lock-free ring buffer and store the
+ * message template and its arguments; formatting and I/O happen on a
+ * background thread which drains the ring in batches to the log file.
+ * If the ring is full the event is dropped and counted rather than
+ * making the calling thread wait.
+ *
+ * Messages use {} as placeholders for arguments, e.g.
+ * Log.info("Client {} now connected", clientID). If the last argument
+ * is a Throwable its stack trace is written after the message.
+ *
+ * Configured with system properties:
+ *   protocol.log.level  DEBUG, INFO, WARN, ERROR or OFF (default INFO)
+ *   protocol.log.file   the file to append to (default standard out)
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final int BATCH = 256;
+
+    /**
+     * One log event. The sequence number is written last, by the
+     * producer, to publish the slot to the drainer.
+     */
+    private static final class Slot {
+        volatile long sequence = -1;
+        Level level;
+        long timeMillis;
+        String threadName;
+        String template;
+        int argCount;
+        Object a0;
+        Object a1;
+        Object a2;
+    }
+
+    private static volatile int threshold = Level.INFO.ordinal();
+    private static final Slot[] ring = new Slot[CAPACITY];
+    private static final AtomicLong head = new AtomicLong();   // the next sequence to claim
+    private static volatile long tail;                         // the next sequence to drain
+    private static volatile long flushedTo;                    // every sequence below this is written out
+    private static final LongAdder dropped = new LongAdder();
+    private static final Writer writer;
+    private static final Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Slot();
+        }
+        try {
+            threshold = Level.valueOf(System.getProperty("protocol.log.level", "INFO")).ordinal();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown protocol.log.level, using INFO");
+        }
+        writer = openWriter(System.getProperty("protocol.log.file"));
+        drainer = new Thread(Log::drainLoop, "Log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "Log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+    private static Writer openWriter(String file) {
+        if (file != null) {
+            try {
+                return Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Could not open log file " + file + ", logging to standard out");
+            }
+        }
+        return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static boolean isDebugEnabled() {
+        return threshold <= Level.DEBUG.ordinal();
+    }
+
+    public static boolean isEnabled(Level level) {
+        return threshold <= level.ordinal();
+    }
+
+    /**
+     * @return -- the number of events dropped because the ring was full
+     */
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    public static void debug(String template) {
+        if (threshold <= Level.DEBUG.ordinal()) { publish(Level.DEBUG, template, 0, null, null, null); }
+    }
+
+    public static void debug(String template, Object a0) {
+        if (threshold <= Level.DEBUG.ordinal()) { publish(Level.DEBUG, template, 1, a0, null, null); }
+    }
+
+    public static void debug(String template, Object a0, Object a1) {
+        if (threshold <= Level.DEBUG.ordinal()) { publish(Level.DEBUG, template, 2, a0, a1, null); }
+    }
+
+    public static void info(String template) {
+        if (threshold <= Level.INFO.ordinal()) { publish(Level.INFO, template, 0, null, null, null); }
+    }
+
+    public static void info(String template, Object a0) {
+        if (threshold <= Level.INFO.ordinal()) { publish(Level.INFO, template, 1, a0, null, null); }
+    }
+
+    public static void info(String template, Object a0, Object a1) {
+        if (threshold <= Level.INFO.ordinal()) { publish(Level.INFO, template, 2, a0, a1, null); }
+    }
+
+    public static void warn(String template) {
+        if (threshold <= Level.WARN.ordinal()) { publish(Level.WARN, template, 0, null, null, null); }
+    }
+
+    public static void warn(String template, Object a0) {
+        if (threshold <= Level.WARN.ordinal()) { publish(Level.WARN, template, 1, a0, null, null); }
+    }
+
+    public static void warn(String template, Object a0, Object a1) {
+        if (threshold <= Level.WARN.ordinal()) { publish(Level.WARN, template, 2, a0, a1, null); }
+    }
+
+    public static void error(String template) {
+        if (threshold <= Level.ERROR.ordinal()) { publish(Level.ERROR, template, 0, null, null, null); }
+    }
+
+    public static void error(String template, Object a0) {
+        if (threshold <= Level.ERROR.ordinal()) { publish(Level.ERROR, template, 1, a0, null, null); }
+    }
+
+    public static void error(String template, Object a0, Object a1) {
+        if (threshold <= Level.ERROR.ordinal()) { publish(Level.ERROR, template, 2, a0, a1, null); }
+    }
+
+    public static void error(String template, Object a0, Object a1, Object a2) {
+        if (threshold <= Level.ERROR.ordinal()) { publish(Level.ERROR, template, 3, a0, a1, a2); }
+    }
+
+    /**
+     * Claims the next free slot, fills it in and publishes it.
+     */
+    private static void publish(Level level, String template, int argCount, Object a0, Object a1, Object a2) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        Slot slot = ring[(int) (seq & MASK)];
+        slot.level = level;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.threadName = Thread.currentThread().getName();
+        slot.template = template;
+        slot.argCount = argCount;
+        slot.a0 = a0;
+        slot.a1 = a1;
+        slot.a2 = a2;
+        slot.sequence = seq;
+        if (seq == tail) {
+            // the drainer may be parked on an empty ring
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Waits until everything logged so far has been written out, for
+     * use before the process exits.
+     */
+    public static void flush() {
+        long target = head.get();
+        long deadline = System.nanoTime() + 2_000_000_000L;
+        while (flushedTo < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private static void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int drained = 0;
+            try {
+                long t = tail;
+                Slot slot;
+                while (drained < BATCH && (slot = ring[(int) (t & MASK)]).sequence == t) {
+                    format(slot, line);
+                    writer.append(line);
+                    line.setLength(0);
+                    slot.template = null;
+                    slot.a0 = slot.a1 = slot.a2 = null;
+                    t++;
+                    tail = t;
+                    drained++;
+                }
+                if (drained < BATCH) {
+                    writer.flush();
+                    flushedTo = t;
+                }
+            } catch (IOException e) {
+                // nowhere left to report it
+            }
+            if (drained == 0) {
+                long missed = dropped.sumThenReset();
+                if (missed > 0) {
+                    publish(Level.WARN, "Log ring full - dropped {} events", 1, missed, null, null);
+                    continue;
+                }
+                LockSupport.parkNanos(10_000_000);
+            }
+        }
+    }
+
+    private static void format(Slot slot, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(slot.timeMillis)).append(' ')
+            .append(slot.level).append(" [").append(slot.threadName).append("] ");
+        String template = slot.template;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < slot.argCount && (at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at).append(argument(slot, arg++));
+            from = at + 2;
+        }
+        line.append(template, from, template.length()).append(System.lineSeparator());
+        Object last = slot.argCount == 0 ? null : argument(slot, slot.argCount - 1);
+        if (last instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) last).printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    private static Object argument(Slot slot, int i) {
+        return i == 0 ? slot.a0 : i == 1 ? slot.a1 : slot.a2;
+    }
+}
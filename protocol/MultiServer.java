@@ -2,9 +2,12 @@ package protocol;
 
 import java.net.*;
 import java.io.*;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Run this class to run the Server.
@@ -13,46 +16,237 @@ import java.util.Set;
  * passes their socket to a new thread to handle
  * concurrent clients.
  * 
- * Holds a threadsafe set for storage of clientIds.
+ * Holds the registry of sessions and their clientIds, and the
+ * key-value storage shared by all connected clients. Sockets beyond
+ * the registry's limit are refused as they are accepted, see 
+ * SessionRegistry.
  * Currently set up to work with DavidPaulProtocol.java
  * as the protocol.
  * 
+ * Sockets are accepted by ACCEPTORS threads, set with the system property
+ * protocol.acceptors. Where the platform supports SO_REUSEPORT, as Linux
+ * does, each thread accepts on its own socket bound to the port and the
+ * kernel spreads connections between them; otherwise the threads share
+ * one socket. Note that with SO_REUSEPORT a second server started on the
+ * same port by the same user shares it rather than failing to bind.
+ * 
  * The server will run until it is sent a kill signal - 
- * e.g. Ctrl-c from the terminal.
+ * e.g. Ctrl-c from the terminal. It then shuts down gracefully: it stops
+ * accepting, lets every session finish the commands it has already read
+ * and flushes their responses (see SessionRegistry.drain), waits for
+ * replicas to be sent every change, and flushes the log, giving up on
+ * whatever is left after protocol.shutdown.deadlineMillis.
+ * 
+ * All output goes through Log, see there for setting the 
+ * log level and file.
+ * 
+ * Usage: java protocol.MultiServer port [-replicationPort p] [-replicaOf host:p]
+ * 
+ * With -replicationPort the server is a replication primary, streaming
+ * every change to replicas which connect on port p, see ReplicationPrimary.
+ * With -replicaOf the server is a read-only replica of the primary whose
+ * replication port is host:p, see ReplicationReplica. Several servers can
+ * be run on one host this way, each with its own ports.
+ * 
+ * Values are stored compressed when the server is run with
+ * -Dprotocol.compression.threshold, see ValueCompressor, and checked
+ * against a CRC32C whenever they are read when it is run with
+ * -Dprotocol.integrity=true, see ShardedStore.
  */
 public class MultiServer {
 
-    // A set of client IDs each representing a connected client
-    // Two clients with the same clientID cannot connect simultaneously
-    // Checking for this is done in AssignmentMultiServerThread
-    public final static Set<String> connectedClientsUnsync = new HashSet<>();
-    public final static Set<String> connectedClients = Collections.synchronizedSet(connectedClientsUnsync);
+    // key-value storage shared by every session, with an ordered index of 
+    // its keys for SCAN unless run with -Dprotocol.store.ordered=false
+    public final static ShardedStore store = new ShardedStore(ShardedStore.DEFAULT_SHARDS,
+        Boolean.parseBoolean(System.getProperty("protocol.store.ordered", "true")));
+    // counters and latencies for every session, also published over JMX
+    public final static ServerStats stats = new ServerStats();
+    // pushes changes to the sessions watching keys or caching them with TRACKING ON
+    final static PushDispatcher pushes = new PushDispatcher(store, stats);
+    // every open session and the client IDs they hold, as two clients with 
+    // the same clientID cannot connect simultaneously
+    final static SessionRegistry sessions = new SessionRegistry(stats);
+    // true when this server is a replica, and so refuses changes from clients
+    static boolean readOnly;
+    static final int ACCEPTORS = Integer.getInteger("protocol.acceptors",
+        Math.min(4, Runtime.getRuntime().availableProcessors()));
+    static final long SHUTDOWN_DEADLINE_MILLIS = Long.getLong("protocol.shutdown.deadlineMillis", 10000);
     public static void main(String[] args) throws IOException {
         
-        if (args.length != 1) {
-            System.err.println("Usage: java AssignmentMultiServer <port number>");
+        if (args.length != 1 && args.length != 3 && args.length != 5) {
+            System.err.println("Usage: java AssignmentMultiServer <port number> "
+                + "[-replicationPort <port number>] [-replicaOf <host>:<port number>]");
             System.exit(1);
         }
  
         int portNumber = -1;
+        int replicationPort = -1;
+        String primaryHost = null;
+        int primaryPort = -1;
         try {
             portNumber = Integer.parseInt(args[0]);
-        } catch (NumberFormatException e) {
-            System.out.println("Port number must be an integer");
+            for (int i = 1; i < args.length; i += 2) {
+                if (args[i].equals("-replicationPort")) {
+                    replicationPort = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-replicaOf")) {
+                    int colon = args[i + 1].lastIndexOf(':');
+                    primaryHost = args[i + 1].substring(0, colon);
+                    primaryPort = Integer.parseInt(args[i + 1].substring(colon + 1));
+                } else {
+                    Log.error("Unknown option {}", args[i]);
+                    System.exit(-1);
+                }
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            Log.error("Port numbers must be integers, and -replicaOf given as host:port");
             System.exit(-1);
         }
-        boolean listening = true;
-         
-        try (ServerSocket serverSocket = new ServerSocket(portNumber)) { 
-            while (listening) {
-                MultiServerThread t = new MultiServerThread(serverSocket.accept());
-                // TODO it may be possible for the socket to drop here already, causing an exception. 
-                t.start();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                stats, new ObjectName("protocol:type=ServerStats"));
+        } catch (JMException e) {
+            Log.warn("Could not register stats with JMX", e);
+        }
+
+        if (ValueCompressor.THRESHOLD > 0) {
+            store.setCompressor(new ValueCompressor(ValueCompressor.THRESHOLD, ValueCompressor.LEVEL, stats));
+            Log.info("Compressing values of {} bytes or more", ValueCompressor.THRESHOLD);
+        }
+        if (Boolean.getBoolean("protocol.integrity")) {
+            store.setChecksums(stats);
+            Log.info("Checking stored values against their checksums");
+        }
+
+        ReplicationPrimary primary = null;
+        if (replicationPort >= 0) {
+            try {
+                ServerSocketChannel replicationChannel = ServerSocketChannel.open();
+                replicationChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                replicationChannel.bind(new InetSocketAddress(replicationPort));
+                primary = new ReplicationPrimary(replicationChannel, store, stats);
+                primary.start();
+                Log.info("Accepting replicas on port {}", replicationPort);
+            } catch (IOException e) {
+                Log.error("Could not listen for replicas on port {}", replicationPort, e);
+                System.exit(-1);
             }
+        }
+        if (primaryHost != null) {
+            readOnly = true;
+            new ReplicationReplica(primaryHost, primaryPort, store, stats).start();
+        }
+         
+        // sockets are accepted through channels, so that sessions can send
+        // values held in files to the socket with FileChannel.transferTo
+        List<ServerSocketChannel> serverChannels = new ArrayList<>();
+        try {
+            openServerChannels(portNumber, serverChannels);
         } catch (IOException e) {
-            System.err.println("Could not listen on port.");
+            Log.error("Could not listen on port {}", portNumber, e);
+            closeAll(serverChannels);
             System.exit(-1);
         }
+        ReplicationPrimary shippedTo = primary;
+        Runtime.getRuntime().addShutdownHook(new Thread(
+            () -> shutdown(serverChannels, shippedTo), "Shutdown"));
+        Log.info("Listening on port {} with {} acceptors", portNumber, 
+            ACCEPTORS + (serverChannels.size() > 1 ? " SO_REUSEPORT" : ""));
+
+        // this thread is the first acceptor
+        for (int i = 1; i < ACCEPTORS; i++) {
+            ServerSocketChannel serverChannel = serverChannels.get(i % serverChannels.size());
+            Thread acceptor = new Thread(() -> accept(serverChannel), "Acceptor-" + i);
+            acceptor.start();
+        }
+        accept(serverChannels.get(0));
+    }
+
+    /**
+     * Binds a channel for each acceptor with SO_REUSEPORT, or a single
+     * channel for all of them where it is not supported.
+     * @param channels -- has the bound channels added to it
+     */
+    private static void openServerChannels(int port, List<ServerSocketChannel> channels) throws IOException {
+        do {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            channels.add(serverChannel);
+            boolean reusePort = ACCEPTORS > 1 
+                && serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverChannel.bind(new InetSocketAddress(port));
+            if (!reusePort) {
+                return;
+            }
+        } while (channels.size() < ACCEPTORS);
+    }
+
+    /**
+     * Runs one acceptor until its channel is closed by the shutdown.
+     */
+    private static void accept(ServerSocketChannel serverChannel) {
+        try {
+            listen(serverChannel);
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                Log.error("Stopped accepting on {}", serverChannel, e);
+            }
+        }
+    }
+
+    /**
+     * Shuts the server down gracefully, run as a shutdown hook: stops
+     * accepting, drains the sessions, waits for replicas to be sent
+     * every change and flushes the log, all within SHUTDOWN_DEADLINE_MILLIS.
+     * @param primary -- the replication primary, or null if there is none
+     */
+    private static void shutdown(List<ServerSocketChannel> serverChannels, ReplicationPrimary primary) {
+        long deadline = System.nanoTime() + SHUTDOWN_DEADLINE_MILLIS * 1000000;
+        Log.info("Shutting down, {} clients connected", sessions.connected());
+        closeAll(serverChannels);
+        try {
+            int closed = sessions.drain(deadline);
+            if (closed > 0) {
+                Log.warn("Closed {} sessions still open at the shutdown deadline", closed);
+            }
+            if (primary != null && !primary.awaitShipped(deadline)) {
+                Log.warn("Replicas had not been sent every change by the shutdown deadline");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.info("Shut down");
+        Log.flush();
+    }
+
+    private static void closeAll(List<ServerSocketChannel> serverChannels) {
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // closed either way
+            }
+        }
+    }
+
+    /**
+     * Accepts clients on the given channel, starting a MultiServerThread
+     * for each, until the channel is closed. Used by main, and by tools 
+     * which start a server inside their own process.
+     * @param serverChannel -- a bound, blocking server socket channel
+     * @throws IOException -- when the channel is closed or fails
+     */
+    public static void listen(ServerSocketChannel serverChannel) throws IOException {
+        boolean listening = true;
+        while (listening) {
+            Socket socket = serverChannel.accept().socket();
+            SessionRegistry.Session session = sessions.admit(socket);
+            if (session != null) {
+                new MultiServerThread(socket, session).start();
+            }
+        }
     }
 }
 
@@ -2,6 +2,9 @@ package protocol;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * A server thread which represents a session with a particular client, 
@@ -9,25 +12,44 @@ import java.io.*;
  * This thread uses the DavidPaulProtocol, getting the clientID from 
  * the protocol and ensuring that multiple clients are not connected
  * with the same ID.
- * For ensure this, the list of clientIDs is kept in 
- * AssignmentMultiServer in a synchronised Set data
- * structure. Each thread will acquire a lock on the
- * shared set before reading and modifying it, to ensure
- * correctness.
+ * To ensure this, the clientID is claimed in MultiServer's
+ * SessionRegistry, which releases it only for the session which
+ * claimed it. The registry also closes the session's socket if it
+ * goes idle, and may limit the rate it sends commands at.
  * 
  * This thread then passes all messages between the client and the 
  * DavidPaulProtocol until the session ends, at which point the 
- * thread is terminated.
+ * thread is terminated. Changes to keys a text session watches or has
+ * cached are pushed to it between responses, see PushDispatcher.
+ * A session which connected with +DEFLATE has everything after its
+ * CONNECT: OK compressed, see WireCompression, and one which connected
+ * with +CRC has every batch of responses followed by their checksum,
+ * see ChecksumOutputStream.
  * 
  */
 public class MultiServerThread extends Thread {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] CONNECT_OK = "CONNECT: OK\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECT_ERROR = "CONNECT: ERROR\n".getBytes(StandardCharsets.US_ASCII);
     private Socket socket = null;
+    private final SessionRegistry.Session session;
     private String clientID;
     private DavidPaulProtocol dpp;
+    // what betweenCommands looks at: the text session's reader, the binary
+    // session's frame buffer, and whether a command is being processed,
+    // which may read input of its own
+    private LineReader lines;
+    private ByteBuffer frames;
+    private boolean processing;
  
-    public MultiServerThread(Socket socket) {
+    /**
+     * @param socket -- the client's socket
+     * @param session -- the socket's place in the registry, closed when the thread ends
+     */
+    public MultiServerThread(Socket socket, SessionRegistry.Session session) {
         super("MultiServerThread");
         this.socket = socket;
+        this.session = session;
     }
 
     /**
@@ -39,55 +61,106 @@ public class MultiServerThread extends Thread {
      */
     public void run() {
         try (
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(
-                new InputStreamReader(
-                    socket.getInputStream()));
+            // passes responses straight through unless the client asks for compression
+            WireCompression.Output wire = new WireCompression.Output(
+                MultiServer.stats.countOut(socket.getOutputStream()), ValueCompressor.LEVEL, MultiServer.stats);
+            // passes responses straight through unless the client asks for checksums,
+            // which cover the responses before compression
+            ChecksumOutputStream checksums = new ChecksumOutputStream(wire);
+            BufferedOutputStream out = new BufferedOutputStream(checksums, BUFFER_SIZE);
+            InputStream in = session.input(MultiServer.stats.countIn(socket.getInputStream()),
+                this::betweenCommands);
         ) {
+            // changes to keys the client watches or caches are pushed to
+            // out from other threads, so out is only written with this locked
+            PushDispatcher.Subscriber pushes = MultiServer.pushes.subscriber(out, socket);
+            // the reader flushes our responses whenever it runs out of
+            // input, so a client pipelining requests gets all of its
+            // responses in a single write
+            Flushable flushResponses = () -> {
+                pushes.lock();
+                try {
+                    out.flush();
+                } finally {
+                    pushes.unlock();
+                }
+            };
+            lines = new LineReader(in, BUFFER_SIZE, flushResponses);
+            WireCompression.Input inflating = null;
+            boolean sessionStarted = false;
             try {
-                String outputLine, inputLine;
-                String firstInput = getNextLine(in);
+                String firstInput = lines.readLine() ? lines.lineAsString() : null;
                 Boolean exitFlag = false;
                 
-                this.dpp = new DavidPaulProtocol();
+                this.dpp = new DavidPaulProtocol(MultiServer.store, MultiServer.stats, MultiServer.readOnly);
                 
                 // get client id from protocol
                 this.clientID = dpp.connect(firstInput);
-                System.out.println("clientID: " + clientID);
+                Log.debug("clientID: {}", clientID);
 
-                // acquire lock on shared connected clients list and ensure
-                // a client with this username is not already connected
-                // send connection accepted message if no errors
-                synchronized (MultiServer.connectedClients) {
-                    if (MultiServer.connectedClients.contains(clientID)) {
+                // claim the clientID, unless a client with this username is
+                // already connected, and send connection accepted message
+                if (!session.claim(clientID)) {
                     exitFlag = true;
-                    } else {
-                        MultiServer.connectedClients.add(clientID);
-                        out.print("CONNECT: OK\n");
-                        out.flush();
-                        System.out.println("Num of clients now connected: " + MultiServer.connectedClients.size());
-                        System.out.println("Client " + clientID + " now connected");
-                    }
+                } else {
+                    MultiServer.stats.sessionStarted();
+                    sessionStarted = true;
+                    out.write(CONNECT_OK);
+                    out.flush();
+                    Log.info("Client {} now connected, {} clients connected", 
+                        clientID, MultiServer.sessions.connected());
                 }
             
                 if (exitFlag) {
                     // there was already a client with this clientID logged in  
-                    out.print("CONNECT: ERROR\n");
+                    MultiServer.stats.connectRejected();
+                    out.write(CONNECT_ERROR);
                     out.flush();
                     socket.close();
                     return; // this kills the thread
                 }
 
+                if (dpp.isChecksummed()) {
+                    checksums.start(dpp.isBinary());
+                }
+                if (dpp.isDeflate()) {
+                    // anything the client sent after its CONNECT line is already compressed
+                    wire.start();
+                    ByteBuffer pending = ByteBuffer.allocate(lines.buf().length);
+                    lines.drainTo(pending);
+                    inflating = new WireCompression.Input(in, Arrays.copyOf(pending.array(), pending.position()),
+                        flushResponses, MultiServer.stats);
+                    lines = new LineReader(inflating, BUFFER_SIZE, flushResponses);
+                }
+
+                // the socket's channel is null unless it was accepted through one, and
+                // is not used for compressed or checksummed sessions, whose values
+                // must pass through out
+                boolean direct = !dpp.isDeflate() && !dpp.isChecksummed();
+                dpp.attach(lines, direct ? socket.getChannel() : null);
+
+                if (dpp.isBinary()) {
+                    serveFrames(lines, out);
+                    return;
+                }
+
                 // the client has successfully connected - enter the main
                 // input/output loop
-                while ((inputLine = getNextLine(in)) != null) {
-                    System.out.println("INPUT: " + inputLine);
-                    outputLine = dpp.processInput(inputLine);
-                    if (outputLine != null) {
-                        System.out.println("OUTPUT: " + outputLine);
-                        out.print(outputLine + "\n");
-                        out.flush();
-                    } 
+                dpp.attachPushes(pushes);
+                while (lines.readLine()) {
+                    session.touch();
+                    if (dpp.expectsCommand()) {
+                        throttle(pushes, out);
+                    }
+                    processing = true;
+                    pushes.lock();
+                    try {
+                        dpp.processLine(lines.buf(), lines.lineStart(), lines.lineLength(), out);
+                        pushes.writePending();
+                    } finally {
+                        pushes.unlock();
+                        processing = false;
+                    }
                     // check for disconnect -- destroy thread if so
                     if (dpp.isDisconnect()) {
                         break;
@@ -98,54 +171,127 @@ public class MultiServerThread extends Thread {
                 // client unexpectedly closed socket or something else went wrong
                 // just let the thread die
             } catch (IOException e) {
-                System.out.println("Client sent unsupported message - closing connection.");
-                // e.printStackTrace();
+                Log.info("Client {} sent unsupported message - closing connection: {}", clientID, e.getMessage());
             } finally {
-                // we want to make sure the client doesn't stay logged in under any circumstance
-                MultiServer.connectedClients.remove(clientID);
-                    System.out.println("Number of clients now connected: " + MultiServer.connectedClients.size());
+                // send any responses still buffered before the socket is closed
+                pushes.close();
+                pushes.lock();
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    // the client has gone - nothing more to send
+                } finally {
+                    pushes.unlock();
+                }
+                if (inflating != null) {
+                    inflating.close();
+                }
+                if (sessionStarted) {
+                    MultiServer.stats.sessionEnded();
+                }
+                // we want to make sure the client doesn't stay logged in under any circumstance,
+                // and only releases the clientID if it was this session's
+                session.close();
+                Log.info("Client {} disconnected, {} clients connected", 
+                    clientID, MultiServer.sessions.connected());
             }
             socket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Error closing connection for client {}", clientID, e);
+        } finally {
+            // in case the socket failed before the session began
+            session.close();
+        }
+    }
+
+    /**
+     * @return -- true if the session has read no part of a command it has
+     * not finished, so it may end rather than wait for another when the
+     * server is draining
+     */
+    private boolean betweenCommands() {
+        if (processing) {
+            return false;
+        }
+        if (frames != null) {
+            // in write mode while reading, holding the start of any partial frame
+            return frames.position() == 0;
         }
+        return (dpp == null || dpp.expectsCommand()) && (lines == null || !lines.hasPartialLine());
     }
 
     /**
-     * Gets the next line from the input stream. 
-     * Returns null if nothing was read in. 
-     * 
-     * @param in - the input stream
-     * @return - the input as a string, not including the newline character
-     * @throws IOException - rethrows from the input stream
+     * Waits, if the session has sent commands faster than its rate allows,
+     * flushing the responses already written first so the client is not
+     * kept waiting for them too.
+     * @param pushes -- the lock on out for a text session, or null
      */
-    private String getNextLine(BufferedReader in) throws IOException {
-        StringBuilder nextLine = new StringBuilder();
-        boolean emptyString = false;
+    private void throttle(PushDispatcher.Subscriber pushes, OutputStream out) throws IOException {
+        long waitNanos = session.throttle();
+        if (waitNanos == 0) {
+            return;
+        }
+        if (pushes != null) {
+            pushes.lock();
+        }
         try {
-            int nextChar = in.read();
-                    if (nextChar == -1 && !emptyString) {
-                        emptyString = true;
-                    }
-                    while (nextChar != -1) {
-                        // keep getting chars until we see a newline
-                        if (nextChar == 10) {
-                            break;
-                        }
-                        if (nextChar > 128) { throw new IOException(); }
-                        // uncomment to prevent /r - our protocol doesn't use them but
-                        // sometimes they get added in by Windows.
-                        // if (nextChar == 13) {
-                        //     nextChar = in.read();
-                        //     continue;
-                        // }
-                        nextLine.append((char) nextChar);
-                        nextChar = in.read();
-                    }
-        } catch (IOException e) {
-            throw e;
+            out.flush();
+        } finally {
+            if (pushes != null) {
+                pushes.unlock();
+            }
+        }
+        try {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    /**
+     * The main input/output loop for a client which connected in binary
+     * mode. Frames are read in bulk into a buffer and processed straight
+     * out of it. As with text sessions, responses are only flushed once
+     * every frame the client has already sent has been processed.
+     * @param lines -- the reader used for the CONNECT line, which may hold
+     * the start of the first frames
+     * @param out -- the buffered socket output stream
+     * @throws IOException -- if the client sent an invalid frame or the socket failed
+     */
+    private void serveFrames(LineReader lines, BufferedOutputStream out) throws IOException {
+        InputStream in = lines.stream();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, lines.buf().length));
+        lines.drainTo(buffer);
+        frames = buffer;
+        buffer.flip();
+        while (true) {
+            while (dpp.processFrame(buffer, out)) {
+                if (dpp.isDisconnect()) {
+                    return;
+                }
+                throttle(null, out);
+            }
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // the next frame is larger than the buffer
+                buffer.flip();
+                int needed = FrameCodec.frameLength(buffer);
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, 2 * buffer.capacity()));
+                larger.put(buffer);
+                buffer = larger;
+                frames = buffer;
+            }
+            if (in.available() == 0) {
+                out.flush();
+            }
+            int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (n == -1) {
+                return;
+            }
+            session.touch();
+            buffer.position(buffer.position() + n);
+            buffer.flip();
         }
-        if (emptyString) return null;
-        return nextLine.toString();
     }
 }
@@ -0,0 +1,439 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks for the protocol and the server request path, run in
+ * the manner of JMH: each benchmark is run for a number of timed warmup
+ * iterations which are thrown away, then for a number of measured
+ * iterations whose mean and standard deviation are reported in ns/op.
+ * Results are fed to a Blackhole so the JIT cannot remove the work.
+ *
+ * The benchmarks are
+ *   processInput.GET, GET.miss, PUT, DELETE, MGET, STATS, INCR
+ *       -- one command through DavidPaulProtocol.processInput
+ *   processInput.GET.compressed, PUT.compressed
+ *       -- the same with every value compressed by a ValueCompressor
+ *   processLine.GET
+ *       -- a GET through the allocation-free processLine used by the server
+ *   LineReader.readLine
+ *       -- splitting a stream of GET lines as MultiServerThread does
+ *   roundTrip.GET, roundTrip.PUT
+ *       -- a request and its response through a MultiServer on loopback
+ *
+ * and each is run for every combination of store size, key length and
+ * value length given.
+ *
+ * Usage: java protocol.ProtocolBenchmark [-option value]...
+ *   -storeSizes a,b,...    keys in the store (default 1000,100000)
+ *   -keyLengths a,b,...    key lengths in bytes (default 16)
+ *   -valueLengths a,b,...  value lengths in bytes (default 16,1024)
+ *   -warmup n              warmup iterations (default 3)
+ *   -iterations n          measured iterations (default 5)
+ *   -time ms               length of each iteration (default 1000)
+ *   -filter regex          only run benchmarks whose names contain a match
+ */
+public class ProtocolBenchmark {
+
+    private static final int OPS_PER_CHECK = 64;
+    private static final int MGET_KEYS = 16;
+
+    private int[] storeSizes = { 1000, 100000 };
+    private int[] keyLengths = { 16 };
+    private int[] valueLengths = { 16, 1024 };
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+    private long iterationNanos = 1000 * 1000000L;
+    private Pattern filter = Pattern.compile("");
+
+    private final Blackhole blackhole = new Blackhole();
+    private String host;
+    private int port;
+
+    /**
+     * One operation of a benchmark. State is set up before the first
+     * call and each call does the same amount of work.
+     */
+    private interface Benchmark {
+        void run(Blackhole blackhole) throws IOException;
+    }
+
+    /**
+     * Consumes results so that the work producing them cannot be
+     * optimised away.
+     */
+    static final class Blackhole {
+        private int sink;
+
+        void consume(Object o) {
+            sink ^= System.identityHashCode(o);
+        }
+
+        void consume(int i) {
+            sink ^= i;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ProtocolBenchmark benchmark = new ProtocolBenchmark();
+        try {
+            benchmark.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            System.err.println("Usage: java protocol.ProtocolBenchmark [-storeSizes a,b] [-keyLengths a,b] "
+                + "[-valueLengths a,b] [-warmup n] [-iterations n] [-time ms] [-filter regex]");
+            System.exit(1);
+        }
+        benchmark.runAll();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        if (args.length % 2 != 0) { throw new IllegalArgumentException("missing value for " + args[args.length - 1]); }
+        for (int i = 0; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-storeSizes": storeSizes = parseList(value); break;
+                case "-keyLengths": keyLengths = parseList(value); break;
+                case "-valueLengths": valueLengths = parseList(value); break;
+                case "-warmup": warmupIterations = Integer.parseInt(value); break;
+                case "-iterations": measuredIterations = Integer.parseInt(value); break;
+                case "-time": iterationNanos = Long.parseLong(value) * 1000000L; break;
+                case "-filter": filter = Pattern.compile(value); break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if (measuredIterations < 1 || warmupIterations < 0 || iterationNanos <= 0) {
+            throw new IllegalArgumentException("iterations and time must be positive");
+        }
+    }
+
+    private static int[] parseList(String value) {
+        String[] parts = value.split(",");
+        int[] list = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            list[i] = Integer.parseInt(parts[i].trim());
+            if (list[i] < 1) { throw new IllegalArgumentException("sizes must be positive"); }
+        }
+        return list;
+    }
+
+    private void runAll() throws IOException {
+        // the round trip benchmarks share one in-process server
+        ServerSocketChannel serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+        host = "localhost";
+        port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        Thread server = new Thread(() -> {
+            try {
+                MultiServer.listen(serverChannel);
+            } catch (IOException e) {
+                // the process is exiting
+            }
+        }, "ProtocolBenchmark-server");
+        server.setDaemon(true);
+        server.start();
+
+        System.out.println(String.format("%-22s %10s %10s %12s %12s %10s",
+            "Benchmark", "storeSize", "keyLength", "valueLength", "ns/op", "stddev"));
+        for (int storeSize : storeSizes) {
+            for (int keyLength : keyLengths) {
+                for (int valueLength : valueLengths) {
+                    runWith(storeSize, keyLength, valueLength);
+                }
+            }
+        }
+    }
+
+    private void runWith(int storeSize, int keyLength, int valueLength) throws IOException {
+        String[] keys = new String[storeSize];
+        for (int i = 0; i < storeSize; i++) {
+            keys[i] = key(i, keyLength);
+        }
+        char[] v = new char[valueLength];
+        Arrays.fill(v, 'v');
+        String value = new String(v);
+        // keys are visited in a fixed random order, so that successive
+        // operations do not land next to each other in the store
+        List<String> order = new ArrayList<>(List.of(keys));
+        Collections.shuffle(order, new Random(42));
+        String[] getLines = prefixed("GET ", order);
+        String[] putLines = prefixed("PUT ", order);
+        String[] deleteLines = prefixed("DELETE ", order);
+        String[] missLines = prefixed("GET ", List.of(key(-1, keyLength)));
+        byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
+
+        ShardedStore store = new ShardedStore(ShardedStore.DEFAULT_SHARDS);
+        for (String k : keys) {
+            store.put(ByteKey.of(k), valueBytes);
+        }
+        DavidPaulProtocol dpp = new DavidPaulProtocol(store, new ServerStats());
+        dpp.connect("CONNECT ProtocolBenchmark");
+        int[] params = { storeSize, keyLength, valueLength };
+
+        bench("processInput.GET", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(dpp.processInput(getLines[next]));
+                next = (next + 1) % getLines.length;
+            }
+        });
+        ShardedStore compressedStore = new ShardedStore(ShardedStore.DEFAULT_SHARDS);
+        compressedStore.setCompressor(new ValueCompressor(1, ValueCompressor.LEVEL, new ServerStats()));
+        for (String k : keys) {
+            compressedStore.put(ByteKey.of(k), valueBytes);
+        }
+        DavidPaulProtocol compressedDpp = new DavidPaulProtocol(compressedStore, new ServerStats());
+        compressedDpp.connect("CONNECT ProtocolBenchmark");
+        bench("processInput.GET.compressed", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(compressedDpp.processInput(getLines[next]));
+                next = (next + 1) % getLines.length;
+            }
+        });
+        bench("processInput.PUT.compressed", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(compressedDpp.processInput(putLines[next]));
+                bh.consume(compressedDpp.processInput(value));
+                next = (next + 1) % putLines.length;
+            }
+        });
+        ShardedStore checkedStore = new ShardedStore(ShardedStore.DEFAULT_SHARDS);
+        checkedStore.setChecksums(new ServerStats());
+        for (String k : keys) {
+            checkedStore.put(ByteKey.of(k), valueBytes);
+        }
+        DavidPaulProtocol checkedDpp = new DavidPaulProtocol(checkedStore, new ServerStats());
+        checkedDpp.connect("CONNECT ProtocolBenchmark");
+        bench("processInput.GET.checked", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(checkedDpp.processInput(getLines[next]));
+                next = (next + 1) % getLines.length;
+            }
+        });
+        bench("processInput.PUT.checked", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(checkedDpp.processInput(putLines[next]));
+                bh.consume(checkedDpp.processInput(value));
+                next = (next + 1) % putLines.length;
+            }
+        });
+        bench("processInput.GET.miss", params, bh -> bh.consume(dpp.processInput(missLines[0])));
+        bench("processInput.PUT", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(dpp.processInput(putLines[next]));
+                bh.consume(dpp.processInput(value));
+                next = (next + 1) % putLines.length;
+            }
+        });
+        // each DELETE is followed by putting the key straight back into the
+        // store, so that every DELETE finds its key; the put is included
+        bench("processInput.DELETE", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(dpp.processInput(deleteLines[next]));
+                store.put(ByteKey.of(order.get(next)), valueBytes);
+                next = (next + 1) % deleteLines.length;
+            }
+        });
+        String[] mgetLines = new String[MGET_KEYS + 1];
+        mgetLines[0] = "MGET " + MGET_KEYS;
+        bench("processInput.MGET", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(dpp.processInput(mgetLines[0]));
+                for (int i = 0; i < MGET_KEYS; i++) {
+                    bh.consume(dpp.processInput(order.get(next)));
+                    next = (next + 1) % order.size();
+                }
+            }
+        });
+        bench("processInput.STATS", params, bh -> bh.consume(dpp.processInput("STATS")));
+        // one counter beside each key, so the counters spread over the shards
+        String[] incrLines = new String[order.size()];
+        for (int i = 0; i < incrLines.length; i++) {
+            incrLines[i] = "INCR #" + order.get(i) + " 1";
+        }
+        bench("processInput.INCR", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                bh.consume(dpp.processInput(incrLines[next]));
+                next = (next + 1) % incrLines.length;
+            }
+        });
+
+        byte[][] getBytes = new byte[getLines.length][];
+        for (int i = 0; i < getLines.length; i++) {
+            getBytes[i] = getLines[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        OutputStream discard = OutputStream.nullOutputStream();
+        bench("processLine.GET", params, new Benchmark() {
+            int next;
+            public void run(Blackhole bh) throws IOException {
+                byte[] line = getBytes[next];
+                dpp.processLine(line, 0, line.length, discard);
+                next = (next + 1) % getBytes.length;
+            }
+        });
+
+        benchLineReader(params, getLines);
+        benchRoundTrip(params, keys, value);
+    }
+
+    /**
+     * Reads the GET lines, over and over, from a stream holding all of
+     * them, counting one operation per line.
+     */
+    private void benchLineReader(int[] params, String[] lines) throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (String line : lines) {
+            all.write(line.getBytes(StandardCharsets.ISO_8859_1));
+            all.write('\n');
+        }
+        byte[] input = all.toByteArray();
+        bench("LineReader.readLine", params, new Benchmark() {
+            LineReader reader = reader();
+            public void run(Blackhole bh) throws IOException {
+                if (!reader.readLine()) {
+                    reader = reader();
+                    reader.readLine();
+                }
+                bh.consume(reader.lineLength());
+            }
+
+            private LineReader reader() {
+                return new LineReader(new ByteArrayInputStream(input), 64 * 1024, () -> { });
+            }
+        });
+    }
+
+    /**
+     * Sends requests to the in-process server over one loopback
+     * connection and waits for each response. The server's store is
+     * shared by all runs, so the keys of each run are prefixed with its
+     * store size and the store holds at least that many keys.
+     */
+    private void benchRoundTrip(int[] params, String[] keys, String value) throws IOException {
+        if (!matches("roundTrip.GET") && !matches("roundTrip.PUT")) {
+            return;
+        }
+        String prefix = "r" + keys.length + "-";
+        Client client = Client.open(host, port, 5000);
+        try {
+            client.request("CONNECT ProtocolBenchmark-" + prefix);
+            Map<String, String> batch = new LinkedHashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                batch.put(prefix + keys[i], value);
+                if (batch.size() == 1000 || i == keys.length - 1) {
+                    client.mput(batch);
+                    batch.clear();
+                }
+            }
+            List<String> order = new ArrayList<>();
+            for (String k : keys) {
+                order.add(prefix + k);
+            }
+            Collections.shuffle(order, new Random(42));
+            String[] getLines = prefixed("GET ", order);
+            String[] putLines = prefixed("PUT ", order);
+            bench("roundTrip.GET", params, new Benchmark() {
+                int next;
+                public void run(Blackhole bh) throws IOException {
+                    bh.consume(client.request(getLines[next]));
+                    next = (next + 1) % getLines.length;
+                }
+            });
+            bench("roundTrip.PUT", params, new Benchmark() {
+                int next;
+                public void run(Blackhole bh) throws IOException {
+                    bh.consume(client.request(putLines[next], value));
+                    next = (next + 1) % putLines.length;
+                }
+            });
+            client.request("DISCONNECT");
+        } finally {
+            client.close();
+        }
+    }
+
+    private boolean matches(String name) {
+        return filter.matcher(name).find();
+    }
+
+    /**
+     * Runs the warmup iterations and then the measured iterations of a
+     * benchmark and prints the result.
+     */
+    private void bench(String name, int[] params, Benchmark benchmark) throws IOException {
+        if (!matches(name)) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(benchmark);
+        }
+        double[] nanosPerOp = new double[measuredIterations];
+        double mean = 0;
+        for (int i = 0; i < measuredIterations; i++) {
+            nanosPerOp[i] = iteration(benchmark);
+            mean += nanosPerOp[i] / measuredIterations;
+        }
+        double variance = 0;
+        for (double n : nanosPerOp) {
+            variance += (n - mean) * (n - mean) / measuredIterations;
+        }
+        System.out.println(String.format("%-22s %10d %10d %12d %12.1f %10.1f",
+            name, params[0], params[1], params[2], mean, Math.sqrt(variance)));
+    }
+
+    /**
+     * @return -- the mean time of an operation over one iteration, in nanoseconds
+     */
+    private double iteration(Benchmark benchmark) throws IOException {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < OPS_PER_CHECK; i++) {
+                benchmark.run(blackhole);
+            }
+            ops += OPS_PER_CHECK;
+        } while ((elapsed = System.nanoTime() - start) < iterationNanos);
+        return (double) elapsed / ops;
+    }
+
+    /**
+     * @return -- a key of exactly the given length made from the index
+     */
+    private static String key(int index, int length) {
+        StringBuilder key = new StringBuilder(length);
+        key.append(index < 0 ? "missing" : Integer.toString(index));
+        while (key.length() < length) {
+            key.insert(0, 'k');
+        }
+        return key.toString();
+    }
+
+    private static String[] prefixed(String prefix, List<String> keys) {
+        String[] lines = new String[keys.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = prefix + keys.get(i);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,493 @@
+package protocol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes lines to sessions when keys change: the STORED and DELETED
+ * events of keys they WATCH or prefixes they SUBSCRIBE to, and the
+ * invalidations of keys they track for a near-cache, see
+ * InvalidationTracker. Fed by the store as a MutationListener.
+ *
+ * A change costs the writer one check that anyone is listening and, if
+ * someone is, one event put on a queue; the writer never waits for a
+ * subscriber. A single dispatcher thread takes events off the queue in
+ * batches, finds the subscribers for each, and adds a message to each
+ * subscriber's queue. Once a batch is done, every subscriber it touched
+ * is handed once to a pool of pusher threads, which write all of its
+ * messages and flush them together.
+ *
+ * A subscriber's messages are written under the session's lock, which
+ * its own thread holds while it processes a command, so a push never
+ * lands inside a response. The session writes the messages which arrive
+ * during a command straight after its response, and a pusher skips any
+ * session which is busy and leaves them to it.
+ *
+ * Each subscriber's queue holds at most QUEUE_LENGTH messages. When a
+ * slow subscriber's queue is full the OVERFLOW policy applies: with
+ * "disconnect", the default, its socket is closed, ending the session;
+ * with "drop" further messages are thrown away and counted, and the
+ * subscriber is told how many with a DROPPED n line once there is room,
+ * after which a near-cache must be emptied as invalidations were lost.
+ * A subscriber whose socket is full still holds up the pusher thread
+ * writing to it, so there are PUSH_THREADS of them.
+ *
+ * The limits are set with the system properties protocol.push.queueLength,
+ * protocol.push.overflow, protocol.push.threads and protocol.push.maxWatches,
+ * the most keys and prefixes one session may watch.
+ */
+final class PushDispatcher implements ShardedStore.MutationListener {
+
+    // the first byte of every line pushed to a client; no response starts with it
+    static final char PUSH_MARKER = '\u001e';
+    static final int QUEUE_LENGTH = Integer.getInteger("protocol.push.queueLength", 10000);
+    static final boolean DISCONNECT_ON_OVERFLOW = !System.getProperty("protocol.push.overflow", "disconnect")
+        .equals("drop");
+    static final int PUSH_THREADS = Integer.getInteger("protocol.push.threads", 2);
+    static final int MAX_WATCHES = Integer.getInteger("protocol.push.maxWatches", 10000);
+    // events taken off the queue at once
+    private static final int BATCH = 1024;
+
+    // the kinds of message, each the word pushed before the key
+    private static final byte[] STORED = ascii(PUSH_MARKER + "STORED ");
+    private static final byte[] DELETED = ascii(PUSH_MARKER + "DELETED ");
+    private static final byte[] INVALIDATE = ascii(PUSH_MARKER + "INVALIDATE ");
+    private static final byte[] DROPPED = ascii(PUSH_MARKER + "DROPPED ");
+
+    /**
+     * A change to a key, or the invalidation of a key the tracker forgot,
+     * in which case the subscribers to tell come with it.
+     */
+    private static final class Event {
+        final ByteKey key;
+        final byte[] kind;
+        final Set<Subscriber> recipients;
+
+        Event(ByteKey key, byte[] kind, Set<Subscriber> recipients) {
+            this.key = key;
+            this.kind = kind;
+            this.recipients = recipients;
+        }
+    }
+
+    /**
+     * One line waiting to be pushed to a subscriber.
+     */
+    private static final class Message {
+        final byte[] kind;
+        final ByteKey key;
+
+        Message(byte[] kind, ByteKey key) {
+            this.kind = kind;
+            this.key = key;
+        }
+    }
+
+    private final ServerStats stats;
+    private final InvalidationTracker tracker = new InvalidationTracker();
+    private final LinkedBlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    // subscribers by the key they watch and the prefix they subscribe to,
+    // each array replaced rather than changed
+    private final ConcurrentHashMap<ByteKey, Subscriber[]> watches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteKey, Subscriber[]> prefixes = new ConcurrentHashMap<>();
+    // the distinct lengths of the prefixes subscribed to, and how many of each, guarded by prefixes
+    private final TreeMap<Integer, Integer> prefixLengthCounts = new TreeMap<>();
+    private volatile int[] prefixLengths = new int[0];
+    private final KeyProbe prefixProbe = new KeyProbe();
+    private final ExecutorService pushers = Executors.newFixedThreadPool(PUSH_THREADS, r -> {
+        Thread t = new Thread(r, "Pusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param store -- the store whose changes are pushed
+     * @param stats -- where the messages pushed and dropped are counted
+     */
+    PushDispatcher(ShardedStore store, ServerStats stats) {
+        this.stats = stats;
+        Thread dispatcher = new Thread(this::dispatch, "PushDispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        store.addListener(this);
+    }
+
+    /**
+     * @param out -- the session's output, which must only be written with the subscriber locked
+     * @param connection -- closed to end the session if it falls too far behind
+     * @return -- a subscriber for the session, with nothing watched and tracking off
+     */
+    Subscriber subscriber(OutputStream out, Closeable connection) {
+        return new Subscriber(out, connection);
+    }
+
+    /**
+     * @return -- the number of keys some session is tracked for
+     */
+    int trackedKeys() {
+        return tracker.size();
+    }
+
+    @Override
+    public void stored(ByteKey key, StoredValue value) {
+        if (listening()) {
+            events.add(new Event(key.retain(), STORED, null));
+        }
+    }
+
+    @Override
+    public void deleted(ByteKey key) {
+        if (listening()) {
+            events.add(new Event(key.retain(), DELETED, null));
+        }
+    }
+
+    private boolean listening() {
+        return !tracker.isEmpty() || !watches.isEmpty() || !prefixes.isEmpty();
+    }
+
+    /**
+     * The dispatcher thread: fans each batch of events out to the
+     * subscribers' queues, then schedules each subscriber touched once.
+     */
+    private void dispatch() {
+        List<Event> batch = new ArrayList<>(BATCH);
+        Set<Subscriber> touched = new LinkedHashSet<>();
+        while (true) {
+            try {
+                batch.add(events.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            events.drainTo(batch, BATCH - 1);
+            for (Event event : batch) {
+                try {
+                    fanOut(event, touched);
+                } catch (RuntimeException e) {
+                    Log.error("Could not dispatch a change to {}", event.key, e);
+                }
+            }
+            for (Subscriber subscriber : touched) {
+                subscriber.schedule();
+            }
+            batch.clear();
+            touched.clear();
+        }
+    }
+
+    private void fanOut(Event event, Set<Subscriber> touched) {
+        if (event.recipients != null) {
+            offerAll(event.recipients, event.kind, event.key, touched);
+            return;
+        }
+        Set<Subscriber> tracking = tracker.take(event.key);
+        if (tracking != null) {
+            offerAll(tracking, INVALIDATE, event.key, touched);
+        }
+        Subscriber[] watching = watches.get(event.key);
+        if (watching != null) {
+            offerAll(Arrays.asList(watching), event.kind, event.key, touched);
+        }
+        for (int length : prefixLengths) {
+            if (length > event.key.length()) {
+                break;
+            }
+            Subscriber[] subscribed = prefixes.get(prefixProbe.set(event.key.bytes, event.key.offset, length));
+            if (subscribed != null) {
+                offerAll(Arrays.asList(subscribed), event.kind, event.key, touched);
+            }
+        }
+    }
+
+    private void offerAll(Iterable<Subscriber> subscribers, byte[] kind, ByteKey key, Set<Subscriber> touched) {
+        Message message = new Message(kind, key);
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.offer(message)) {
+                touched.add(subscriber);
+            }
+        }
+    }
+
+    private static Subscriber[] with(Subscriber[] subscribers, Subscriber subscriber) {
+        if (subscribers == null) {
+            return new Subscriber[] { subscriber };
+        }
+        Subscriber[] added = Arrays.copyOf(subscribers, subscribers.length + 1);
+        added[subscribers.length] = subscriber;
+        return added;
+    }
+
+    /**
+     * @return -- the subscribers without the one given, or null if there are none left
+     */
+    private static Subscriber[] without(Subscriber[] subscribers, Subscriber subscriber) {
+        if (subscribers == null) {
+            return null;
+        }
+        int remaining = 0;
+        Subscriber[] kept = new Subscriber[subscribers.length];
+        for (Subscriber s : subscribers) {
+            if (s != subscriber) {
+                kept[remaining++] = s;
+            }
+        }
+        return remaining == 0 ? null : Arrays.copyOf(kept, remaining);
+    }
+
+    private void addPrefixLength(int length, int change) {
+        synchronized (prefixes) {
+            prefixLengthCounts.merge(length, change, Integer::sum);
+            prefixLengthCounts.remove(length, 0);
+            prefixLengths = prefixLengthCounts.keySet().stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * One client session's end of the dispatcher. Its methods other than
+     * the lock are only called by the session's own thread.
+     */
+    final class Subscriber {
+        private final OutputStream out;
+        private final Closeable connection;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ConcurrentLinkedQueue<Message> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // messages thrown away since the subscriber was last told, counted by the
+        // dispatcher and taken by whichever thread writes the DROPPED line
+        private final AtomicLong dropped = new AtomicLong();
+        private final Set<ByteKey> watched = new HashSet<>();
+        private final Set<ByteKey> subscribed = new HashSet<>();
+        // the keys the tracker holds this subscriber for, see InvalidationTracker
+        private final Set<ByteKey> trackedKeys = ConcurrentHashMap.newKeySet();
+        private volatile boolean tracking;
+        private volatile boolean closed;
+
+        private Subscriber(OutputStream out, Closeable connection) {
+            this.out = out;
+            this.connection = connection;
+        }
+
+        /**
+         * Takes the session's lock, which must be held to write to its output.
+         */
+        void lock() {
+            lock.lock();
+        }
+
+        /**
+         * Releases the session's lock, handing any messages which arrived
+         * meanwhile to a pusher thread.
+         */
+        void unlock() {
+            lock.unlock();
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+
+        /**
+         * Turns tracking on or off. Keys already tracked are still pushed
+         * after it is turned off, and the client may ignore them.
+         */
+        void setTracking(boolean on) {
+            tracking = on;
+        }
+
+        /**
+         * Remembers that the session is about to read key, if tracking is on.
+         * @param key -- the key, which may be a probe
+         */
+        void track(ByteKey key) {
+            if (!tracking) {
+                return;
+            }
+            Map.Entry<ByteKey, Set<Subscriber>> evicted = tracker.track(key, this);
+            if (evicted != null) {
+                events.add(new Event(evicted.getKey(), INVALIDATE, evicted.getValue()));
+            }
+        }
+
+        Set<ByteKey> trackedKeys() {
+            return trackedKeys;
+        }
+
+        /**
+         * Starts pushing STORED and DELETED for a key.
+         * @return -- false if the session already watches as many keys and prefixes as it may
+         */
+        boolean watch(ByteKey key) {
+            ByteKey kept = key.retain();
+            if (watched.contains(kept)) {
+                return true;
+            }
+            if (watched.size() + subscribed.size() >= MAX_WATCHES) {
+                return false;
+            }
+            watched.add(kept);
+            watches.compute(kept, (k, subscribers) -> with(subscribers, this));
+            return true;
+        }
+
+        void unwatch(ByteKey key) {
+            ByteKey kept = key.retain();
+            if (watched.remove(kept)) {
+                watches.compute(kept, (k, subscribers) -> without(subscribers, this));
+            }
+        }
+
+        /**
+         * Starts pushing STORED and DELETED for every key starting with prefix.
+         * @return -- false if the session already watches as many keys and prefixes as it may
+         */
+        boolean subscribe(ByteKey prefix) {
+            ByteKey kept = prefix.retain();
+            if (subscribed.contains(kept)) {
+                return true;
+            }
+            if (watched.size() + subscribed.size() >= MAX_WATCHES) {
+                return false;
+            }
+            subscribed.add(kept);
+            prefixes.compute(kept, (k, subscribers) -> {
+                if (subscribers == null) {
+                    addPrefixLength(kept.length(), 1);
+                }
+                return with(subscribers, this);
+            });
+            return true;
+        }
+
+        void unsubscribe(ByteKey prefix) {
+            ByteKey kept = prefix.retain();
+            if (subscribed.remove(kept)) {
+                prefixes.compute(kept, (k, subscribers) -> {
+                    Subscriber[] remaining = without(subscribers, this);
+                    if (remaining == null) {
+                        addPrefixLength(kept.length(), -1);
+                    }
+                    return remaining;
+                });
+            }
+        }
+
+        /**
+         * Writes every waiting message to the output, without flushing it.
+         * Must be called with the subscriber locked.
+         */
+        void writePending() throws IOException {
+            Message message;
+            while ((message = pending.poll()) != null) {
+                queued.decrementAndGet();
+                out.write(message.kind);
+                out.write(message.key.bytes, message.key.offset, message.key.length);
+                out.write('\n');
+                if (message.kind == INVALIDATE) {
+                    stats.invalidationPushed();
+                } else {
+                    stats.eventPushed();
+                }
+            }
+            long lost = dropped.get() > 0 ? dropped.getAndSet(0) : 0;
+            if (lost > 0) {
+                out.write(DROPPED);
+                out.write(ascii(Long.toString(lost)));
+                out.write('\n');
+            }
+        }
+
+        /**
+         * Stops all pushes to the session, once it has ended, and forgets
+         * what it watched and tracked.
+         */
+        void close() {
+            closed = true;
+            tracking = false;
+            tracker.forget(this);
+            for (ByteKey key : new ArrayList<>(watched)) {
+                unwatch(key);
+            }
+            for (ByteKey prefix : new ArrayList<>(subscribed)) {
+                unsubscribe(prefix);
+            }
+            pending.clear();
+        }
+
+        /**
+         * Adds a message to the queue, or applies the overflow policy if it is full.
+         * Only called by the dispatcher thread.
+         * @return -- true if the message was queued
+         */
+        private boolean offer(Message message) {
+            if (closed) {
+                return false;
+            }
+            if (queued.get() >= QUEUE_LENGTH) {
+                stats.pushDropped();
+                if (DISCONNECT_ON_OVERFLOW) {
+                    closed = true;
+                    stats.pushDisconnect();
+                    Log.info("Closing a session {} messages behind", QUEUE_LENGTH);
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        // closed either way
+                    }
+                } else {
+                    dropped.incrementAndGet();
+                }
+                return false;
+            }
+            queued.incrementAndGet();
+            pending.add(message);
+            return true;
+        }
+
+        private void schedule() {
+            if (!closed && scheduled.compareAndSet(false, true)) {
+                pushers.execute(this::deliver);
+            }
+        }
+
+        /**
+         * Writes and flushes the waiting messages, unless the session's own
+         * thread holds the lock, in which case it will write them itself.
+         */
+        private void deliver() {
+            scheduled.set(false);
+            if (closed || !lock.tryLock()) {
+                return;
+            }
+            try {
+                writePending();
+                out.flush();
+            } catch (IOException e) {
+                // the session's own thread sees the failure and ends the session
+                pending.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package protocol;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The in-memory log of changes a replication primary ships to its
+ * replicas, fed by the store as a MutationListener.
+ *
+ * Each entry is numbered in sequence and has an offset: the number of
+ * bytes its record, and every record before it, takes in the
+ * replication stream (see ReplicationPrimary). A replica's lag in bytes
+ * is the difference between the log's end offset and the offset it
+ * has applied up to.
+ *
+ * Every replica reads from its own Cursor. Entries are dropped once
+ * every cursor has passed them, and nothing is logged at all while no
+ * replica is connected, since a replica starts from a snapshot of the
+ * store. The log never holds more than MAX_RETAINED_BYTES; if a slow
+ * replica falls further behind than that its entries are dropped
+ * anyway, and it must reconnect and start again from a new snapshot.
+ * The limit is set with the system property protocol.replication.maxLogBytes.
+ */
+final class ReplicationLog implements ShardedStore.MutationListener {
+
+    static final long MAX_RETAINED_BYTES = Long.getLong("protocol.replication.maxLogBytes", 256L * 1024 * 1024);
+
+    /**
+     * One change to the store. The value is null for a delete.
+     */
+    static final class Entry {
+        final ByteKey key;
+        final StoredValue value;
+        // the offset of the end of this entry's record
+        final long endOffset;
+        final long commitMillis;
+
+        Entry(ByteKey key, StoredValue value, long endOffset, long commitMillis) {
+            this.key = key;
+            this.value = value;
+            this.endOffset = endOffset;
+            this.commitMillis = commitMillis;
+        }
+    }
+
+    /**
+     * A replica's position in the log.
+     */
+    static final class Cursor {
+        // the sequence number of the next entry to read
+        private long next;
+        // the offset of the end of the log when the cursor was registered
+        private long startOffset;
+        // the offset up to which the replica has been sent the log
+        private volatile long shippedOffset;
+
+        long startOffset() {
+            return startOffset;
+        }
+
+        /**
+         * Records that the replica has been sent, and flushed, every record up to offset.
+         */
+        void shipped(long offset) {
+            shippedOffset = offset;
+        }
+    }
+
+    // guarded by this; entries held in a ring, the first at head, so a
+    // cursor finds its next entry without walking the ones before it
+    private Entry[] ring = new Entry[1024];
+    private int head;
+    private int size;
+    private final List<Cursor> cursors = new ArrayList<>();
+    private long firstSeq;
+    private long endOffset;
+    private long retainedBytes;
+
+    /**
+     * @return -- the size of the record for a change to the stream
+     */
+    static long recordLength(ByteKey key, StoredValue value) {
+        return 1 + 4 + key.length() + (value == null ? 0 : 8 + value.length());
+    }
+
+    @Override
+    public void stored(ByteKey key, StoredValue value) {
+        append(key, value);
+    }
+
+    @Override
+    public void deleted(ByteKey key) {
+        append(key, null);
+    }
+
+    private synchronized void append(ByteKey key, StoredValue value) {
+        if (cursors.isEmpty()) {
+            return;
+        }
+        long length = recordLength(key, value);
+        endOffset += length;
+        retainedBytes += length;
+        if (size == ring.length) {
+            Entry[] larger = new Entry[2 * ring.length];
+            for (int i = 0; i < size; i++) {
+                larger[i] = ring[(head + i) & (ring.length - 1)];
+            }
+            ring = larger;
+            head = 0;
+        }
+        ring[(head + size) & (ring.length - 1)] = new Entry(key.retain(), 
+            value == null ? null : value.retain(), endOffset, System.currentTimeMillis());
+        size++;
+        while (retainedBytes > MAX_RETAINED_BYTES && size > 1) {
+            dropFirst();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Starts a cursor at the end of the log. Every change made after this
+     * returns will be read from it.
+     */
+    synchronized Cursor register() {
+        Cursor cursor = new Cursor();
+        cursor.next = firstSeq + size;
+        cursor.startOffset = endOffset;
+        cursor.shippedOffset = endOffset;
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    synchronized void unregister(Cursor cursor) {
+        cursors.remove(cursor);
+        trim();
+    }
+
+    /**
+     * @return -- the offset of the end of the log
+     */
+    synchronized long endOffset() {
+        return endOffset;
+    }
+
+    /**
+     * @return -- true if every connected replica has been sent the whole log
+     */
+    synchronized boolean isShipped() {
+        for (Cursor cursor : cursors) {
+            if (cursor.shippedOffset < endOffset) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next entries for a cursor, waiting for some if there are none.
+     * @param cursor -- the cursor to read from and move on
+     * @param batch -- has the entries added to it, their values retained for the caller
+     * @param maxBytes -- entries are added until their records total at least this
+     * @param waitMillis -- how long to wait if there are none
+     * @return -- false if no entries arrived in time
+     * @throws IOException -- if the cursor fell so far behind its entries were dropped
+     * @throws InterruptedException -- if interrupted while waiting
+     */
+    synchronized boolean read(Cursor cursor, List<Entry> batch, long maxBytes, long waitMillis)
+            throws IOException, InterruptedException {
+        if (cursor.next < firstSeq) {
+            throw new IOException("Replica fell more than " + MAX_RETAINED_BYTES + " bytes behind");
+        }
+        if (cursor.next == firstSeq + size) {
+            wait(waitMillis);
+            if (cursor.next < firstSeq) {
+                throw new IOException("Replica fell more than " + MAX_RETAINED_BYTES + " bytes behind");
+            }
+        }
+        long bytes = 0;
+        while (cursor.next < firstSeq + size && bytes < maxBytes) {
+            Entry entry = ring[(head + (int) (cursor.next - firstSeq)) & (ring.length - 1)];
+            if (entry.value != null) {
+                entry.value.retain();
+            }
+            batch.add(entry);
+            bytes += recordLength(entry.key, entry.value);
+            cursor.next++;
+        }
+        trim();
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Drops the entries every cursor has passed.
+     */
+    private void trim() {
+        long lowest = firstSeq + size;
+        for (Cursor cursor : cursors) {
+            lowest = Math.min(lowest, cursor.next);
+        }
+        while (firstSeq < lowest) {
+            dropFirst();
+        }
+    }
+
+    private void dropFirst() {
+        Entry entry = ring[head];
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        size--;
+        firstSeq++;
+        retainedBytes -= recordLength(entry.key, entry.value);
+        if (entry.value != null) {
+            entry.value.release();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The primary side of replication. Accepts replicas on its own port and
+ * streams every change made to the store to each of them, asynchronously,
+ * so sessions never wait for a replica.
+ *
+ * A replica opens the connection and sends the line REPLICATE. It is then
+ * sent a stream of records, all numbers big-endian:
+ *
+ *   'R'                                  reset: clear the store, a snapshot follows
+ *   'P' keyLength:4 key valueLength:8 value   store a value
+ *   'D' keyLength:4 key                  delete a key
+ *   'S' offset:8                         the snapshot is complete, at this log offset
+ *   'B' count:4 endOffset:8 primaryEnd:8 commitMillis:8
+ *                                        a batch of count P and D records follows,
+ *                                        ending at endOffset; primaryEnd is the end
+ *                                        of the log when it was sent, commitMillis
+ *                                        when its last change was made
+ *   'H' primaryEnd:8                     a heartbeat, sent when there is nothing new
+ *
+ * The snapshot is taken a shard at a time after the replica's cursor is
+ * registered with the ReplicationLog, so any change made while it is
+ * taken is also in the log, and replaying it brings the replica up to
+ * date. Values held in files are sent straight from the file to the
+ * socket with FileChannel.transferTo.
+ */
+public class ReplicationPrimary extends Thread {
+
+    // the most record bytes sent in one batch
+    private static final long BATCH_BYTES = 1024 * 1024;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    // the line a replica sends to start replication
+    static final String HELLO = "REPLICATE";
+
+    private final ServerSocketChannel serverChannel;
+    private final ShardedStore store;
+    private final ServerStats stats;
+    private final ReplicationLog log = new ReplicationLog();
+
+    /**
+     * @param serverChannel -- a bound channel on which to accept replicas
+     * @param store -- the store whose changes are shipped
+     * @param stats -- where connected replicas are counted
+     */
+    public ReplicationPrimary(ServerSocketChannel serverChannel, ShardedStore store, ServerStats stats) {
+        super("ReplicationPrimary");
+        this.serverChannel = serverChannel;
+        this.store = store;
+        this.stats = stats;
+        store.addListener(log);
+        setDaemon(true);
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Thread sender = new Thread(() -> serve(channel), "ReplicationSender");
+                sender.setDaemon(true);
+                sender.start();
+            }
+        } catch (IOException e) {
+            Log.error("Replication listener failed", e);
+        }
+    }
+
+    /**
+     * Waits until every connected replica has been sent every change made
+     * so far, for a server shutting down once its sessions have ended.
+     * @param deadlineNanos -- the System.nanoTime() to give up at
+     * @return -- true if the replicas were sent everything in time
+     */
+    public boolean awaitShipped(long deadlineNanos) throws InterruptedException {
+        while (!log.isShipped()) {
+            if (System.nanoTime() > deadlineNanos) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the snapshot and then the log to one replica until it
+     * disconnects or falls too far behind.
+     */
+    private void serve(SocketChannel channel) {
+        Socket socket = channel.socket();
+        ReplicationLog.Cursor cursor = null;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024))) {
+            socket.setTcpNoDelay(true);
+            LineReader hello = new LineReader(socket.getInputStream(), 64, () -> { });
+            if (!hello.readLine() || !hello.lineAsString().equals(HELLO)) {
+                Log.warn("Rejected replication connection from {}", socket.getRemoteSocketAddress());
+                return;
+            }
+            cursor = log.register();
+            stats.replicaConnected();
+            Log.info("Replica {} connected", socket.getRemoteSocketAddress());
+
+            out.writeByte('R');
+            sendSnapshot(out, channel);
+            out.writeByte('S');
+            out.writeLong(cursor.startOffset());
+            out.flush();
+
+            List<ReplicationLog.Entry> batch = new ArrayList<>();
+            while (true) {
+                if (!log.read(cursor, batch, BATCH_BYTES, HEARTBEAT_MILLIS)) {
+                    out.writeByte('H');
+                    out.writeLong(log.endOffset());
+                    out.flush();
+                    continue;
+                }
+                try {
+                    ReplicationLog.Entry last = batch.get(batch.size() - 1);
+                    out.writeByte('B');
+                    out.writeInt(batch.size());
+                    out.writeLong(last.endOffset);
+                    out.writeLong(log.endOffset());
+                    out.writeLong(last.commitMillis);
+                    for (ReplicationLog.Entry entry : batch) {
+                        writeRecord(out, channel, entry.key, entry.value);
+                    }
+                    out.flush();
+                    cursor.shipped(last.endOffset);
+                } finally {
+                    for (ReplicationLog.Entry entry : batch) {
+                        if (entry.value != null) {
+                            entry.value.release();
+                        }
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            Log.info("Replica {} disconnected: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (cursor != null) {
+                log.unregister(cursor);
+                stats.replicaDisconnected();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Sends every key and value in the store, a shard at a time.
+     */
+    private void sendSnapshot(DataOutputStream out, SocketChannel channel) throws IOException {
+        List<ByteKey> keys = new ArrayList<>();
+        List<StoredValue> values = new ArrayList<>();
+        for (int shard = 0; shard < store.shardCount(); shard++) {
+            store.copyShard(shard, keys, values);
+            try {
+                for (int i = 0; i < keys.size(); i++) {
+                    writeRecord(out, channel, keys.get(i), values.get(i));
+                }
+            } finally {
+                for (StoredValue value : values) {
+                    value.release();
+                }
+                keys.clear();
+                values.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes a P record, or a D record if value is null.
+     */
+    private static void writeRecord(DataOutputStream out, SocketChannel channel, ByteKey key, StoredValue value)
+            throws IOException {
+        out.writeByte(value == null ? 'D' : 'P');
+        out.writeInt(key.length);
+        out.write(key.bytes, key.offset, key.length);
+        if (value != null) {
+            out.writeLong(value.length());
+            value.writeTo(out, channel);
+        }
+    }
+}
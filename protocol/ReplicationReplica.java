@@ -0,0 +1,183 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The replica side of replication. Connects to a ReplicationPrimary,
+ * applies the snapshot and then the stream of changes it sends to the
+ * local store, and keeps the replication lag in the stats up to date.
+ * See ReplicationPrimary for the stream itself.
+ *
+ * If the connection fails or the primary drops it, the replica waits a
+ * second and connects again, starting over from a new snapshot. Until
+ * that snapshot is complete GETs may see a partly filled store.
+ *
+ * Lag in bytes is how much of the primary's log has not been applied
+ * yet. Lag in milliseconds is how long the newest change applied took
+ * to arrive from the primary, until a heartbeat shows the replica has
+ * caught up and it drops to 0; on separate hosts it is only as good as
+ * their clocks.
+ */
+public class ReplicationReplica extends Thread {
+
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final ShardedStore store;
+    private final ServerStats stats;
+    private final byte[] copyBuffer = new byte[64 * 1024];
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private volatile boolean synced;
+    private long appliedOffset;
+
+    /**
+     * @param host -- the primary's host
+     * @param port -- the primary's replication port
+     * @param store -- the store to keep in step with the primary's
+     * @param stats -- where the replication lag is reported
+     */
+    public ReplicationReplica(String host, int port, ShardedStore store, ServerStats stats) {
+        super("ReplicationReplica");
+        this.host = host;
+        this.port = port;
+        this.store = store;
+        this.stats = stats;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (running) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                s.getOutputStream().write((ReplicationPrimary.HELLO + "\n").getBytes(StandardCharsets.US_ASCII));
+                s.getOutputStream().flush();
+                Log.info("Replicating from {}", host + ":" + port);
+                apply(new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024)));
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Replication from {} failed: {}", host + ":" + port, e.getMessage());
+                }
+            }
+            synced = false;
+            if (running) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return -- true once the snapshot has been applied, until the connection is lost
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Stops replicating and closes the connection.
+     */
+    public void shutdown() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        interrupt();
+    }
+
+    /**
+     * Applies records until the stream ends.
+     */
+    private void apply(DataInputStream in) throws IOException {
+        while (true) {
+            int type = in.read();
+            switch (type) {
+                case -1:
+                    throw new EOFException("Primary closed the connection");
+                case 'R':
+                    store.clear();
+                    break;
+                case 'P':
+                case 'D':
+                    applyRecord(in, type);
+                    break;
+                case 'S':
+                    appliedOffset = in.readLong();
+                    synced = true;
+                    stats.replicationLag(0, 0);
+                    Log.info("Replica synced with {}, {} keys", host + ":" + port, store.size());
+                    break;
+                case 'B': {
+                    int count = in.readInt();
+                    long endOffset = in.readLong();
+                    long primaryEnd = in.readLong();
+                    long commitMillis = in.readLong();
+                    for (int i = 0; i < count; i++) {
+                        applyRecord(in, in.read());
+                    }
+                    appliedOffset = endOffset;
+                    long lagBytes = Math.max(0, primaryEnd - appliedOffset);
+                    stats.replicationLag(lagBytes, System.currentTimeMillis() - commitMillis);
+                    break;
+                }
+                case 'H': {
+                    long lagBytes = Math.max(0, in.readLong() - appliedOffset);
+                    stats.replicationLag(lagBytes, lagBytes == 0 ? 0 : stats.getReplicationLagMillis());
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown replication record " + type);
+            }
+        }
+    }
+
+    /**
+     * Applies one P or D record.
+     */
+    private void applyRecord(DataInputStream in, int type) throws IOException {
+        if (type != 'P' && type != 'D') {
+            throw new IOException("Unknown replication record " + type);
+        }
+        int keyLength = in.readInt();
+        if (keyLength < 0) {
+            throw new IOException("Invalid key length " + keyLength);
+        }
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+        if (type == 'D') {
+            store.delete(new ByteKey(key));
+            return;
+        }
+        long valueLength = in.readLong();
+        if (valueLength < 0) {
+            throw new IOException("Invalid value length " + valueLength);
+        }
+        // large values are streamed to a file as they arrive, just as PUTC does
+        ValueWriter value = new ValueWriter();
+        try {
+            long remaining = valueLength;
+            while (remaining > 0) {
+                int n = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+                if (n == -1) {
+                    throw new EOFException("Primary closed the connection inside a value");
+                }
+                value.write(copyBuffer, 0, n);
+                remaining -= n;
+            }
+            store.put(new ByteKey(key), value.finish());
+        } finally {
+            value.close();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package protocol;
+
+import java.io.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the server, shared by all sessions.
+ *
+ * Every counter is a LongAdder and every histogram is striped, so
+ * sessions recording at the same time do not contend with each other.
+ * The figures can be read with the STATS command or over JMX, where
+ * this is registered as protocol:type=ServerStats.
+ */
+public class ServerStats implements ServerStatsMBean {
+
+    private static final DavidPaulProtocol.Command[] COMMANDS = DavidPaulProtocol.Command.values();
+
+    private final LongAdder[] commandCounts = new LongAdder[COMMANDS.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder rejectedConnects = new LongAdder();
+    private final LongAdder refusedConnects = new LongAdder();
+    private final LongAdder throttledCommands = new LongAdder();
+    private final LongAdder replicas = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder pushEvents = new LongAdder();
+    private final LongAdder pushDropped = new LongAdder();
+    private final LongAdder pushDisconnects = new LongAdder();
+    // bytes before and after compression, and nanoseconds spent compressing and inflating
+    private final LongAdder storeRawBytes = new LongAdder();
+    private final LongAdder storeCompressedBytes = new LongAdder();
+    private final LongAdder storeCompressionNanos = new LongAdder();
+    private final LongAdder wireRawBytes = new LongAdder();
+    private final LongAdder wireCompressedBytes = new LongAdder();
+    private final LongAdder wireCompressionNanos = new LongAdder();
+    private final LongAdder integrityFailures = new LongAdder();
+    private volatile long replicationLagBytes;
+    private volatile long replicationLagMillis;
+
+    public ServerStats() {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            commandCounts[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records one completed command and how long the server took to process it.
+     */
+    void record(DavidPaulProtocol.Command command, long nanos) {
+        commandCounts[command.ordinal()].increment();
+        latencies[command.ordinal()].record(nanos);
+    }
+
+    void sessionStarted() {
+        activeSessions.increment();
+    }
+
+    void sessionEnded() {
+        activeSessions.decrement();
+    }
+
+    void connectRejected() {
+        rejectedConnects.increment();
+    }
+
+    void connectRefused() {
+        refusedConnects.increment();
+    }
+
+    void commandThrottled() {
+        throttledCommands.increment();
+    }
+
+    void replicaConnected() {
+        replicas.increment();
+    }
+
+    void replicaDisconnected() {
+        replicas.decrement();
+    }
+
+    void invalidationPushed() {
+        invalidations.increment();
+    }
+
+    void eventPushed() {
+        pushEvents.increment();
+    }
+
+    void pushDropped() {
+        pushDropped.increment();
+    }
+
+    void pushDisconnect() {
+        pushDisconnects.increment();
+    }
+
+    /**
+     * Records a value offered to the store's compressor.
+     * @param rawLength -- its length
+     * @param storedLength -- its length as stored, the same if it was not worth compressing
+     */
+    void valueCompressed(long rawLength, long storedLength, long nanos) {
+        storeRawBytes.add(rawLength);
+        storeCompressedBytes.add(storedLength);
+        storeCompressionNanos.add(nanos);
+    }
+
+    void valueInflated(long nanos) {
+        storeCompressionNanos.add(nanos);
+    }
+
+    /**
+     * Records a stored value which failed its checksum.
+     */
+    void integrityFailure() {
+        integrityFailures.increment();
+    }
+
+    /**
+     * Records bytes compressed for, or inflated from, a session's connection.
+     */
+    void wireCompressed(long rawLength, long compressedLength, long nanos) {
+        wireRawBytes.add(rawLength);
+        wireCompressedBytes.add(compressedLength);
+        wireCompressionNanos.add(nanos);
+    }
+
+    /**
+     * Records how far behind its primary this server is, as a replica.
+     */
+    void replicationLag(long bytes, long millis) {
+        replicationLagBytes = bytes;
+        replicationLagMillis = millis;
+    }
+
+    /**
+     * Counts bytes sent to a client without going through a countOut
+     * stream, such as values sent from a file with transferTo.
+     */
+    void bytesSent(long n) {
+        if (n > 0) { bytesOut.add(n); }
+    }
+
+    /**
+     * @return -- a stream which counts the bytes read from in as bytes in
+     */
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) { bytesIn.increment(); }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) { bytesIn.add(n); }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * @return -- a stream which counts the bytes written to out as bytes out
+     */
+    OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getRejectedConnects() {
+        return rejectedConnects.sum();
+    }
+
+    @Override
+    public long getRefusedConnects() {
+        return refusedConnects.sum();
+    }
+
+    @Override
+    public long getThrottledCommands() {
+        return throttledCommands.sum();
+    }
+
+    @Override
+    public long getReplicas() {
+        return replicas.sum();
+    }
+
+    @Override
+    public long getReplicationLagBytes() {
+        return replicationLagBytes;
+    }
+
+    @Override
+    public long getReplicationLagMillis() {
+        return replicationLagMillis;
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public long getPushEvents() {
+        return pushEvents.sum();
+    }
+
+    @Override
+    public long getPushDropped() {
+        return pushDropped.sum();
+    }
+
+    @Override
+    public long getPushDisconnects() {
+        return pushDisconnects.sum();
+    }
+
+    @Override
+    public long getIntegrityFailures() {
+        return integrityFailures.sum();
+    }
+
+    @Override
+    public long getStoreBytesUncompressed() {
+        return storeRawBytes.sum();
+    }
+
+    @Override
+    public long getStoreBytesCompressed() {
+        return storeCompressedBytes.sum();
+    }
+
+    @Override
+    public long getStoreCompressionMicros() {
+        return storeCompressionNanos.sum() / 1000;
+    }
+
+    @Override
+    public long getWireBytesUncompressed() {
+        return wireRawBytes.sum();
+    }
+
+    @Override
+    public long getWireBytesCompressed() {
+        return wireCompressedBytes.sum();
+    }
+
+    @Override
+    public long getWireCompressionMicros() {
+        return wireCompressionNanos.sum() / 1000;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getCount(String command) {
+        return commandCounts[DavidPaulProtocol.Command.valueOf(command).ordinal()].sum();
+    }
+
+    @Override
+    public long getLatencyMicros(String command, double percentile) {
+        return latencies[DavidPaulProtocol.Command.valueOf(command).ordinal()].percentile(percentile) / 1000;
+    }
+
+    /**
+     * The figures as "name value" lines, the format returned by the STATS command.
+     */
+    @Override
+    public String getSummary() {
+        StringBuilder s = new StringBuilder();
+        s.append("sessions.active ").append(getActiveSessions()).append('\n');
+        s.append("connect.rejected ").append(getRejectedConnects()).append('\n');
+        s.append("connect.refused ").append(getRefusedConnects()).append('\n');
+        s.append("commands.throttled ").append(getThrottledCommands()).append('\n');
+        s.append("bytes.in ").append(getBytesIn()).append('\n');
+        s.append("bytes.out ").append(getBytesOut()).append('\n');
+        s.append("replication.replicas ").append(getReplicas()).append('\n');
+        s.append("replication.lag.bytes ").append(getReplicationLagBytes()).append('\n');
+        s.append("replication.lag.ms ").append(getReplicationLagMillis()).append('\n');
+        s.append("tracking.invalidations ").append(getInvalidations()).append('\n');
+        s.append("push.events ").append(getPushEvents()).append('\n');
+        s.append("push.dropped ").append(getPushDropped()).append('\n');
+        s.append("push.disconnects ").append(getPushDisconnects()).append('\n');
+        s.append("integrity.failures ").append(getIntegrityFailures()).append('\n');
+        s.append("compression.store.raw.bytes ").append(getStoreBytesUncompressed()).append('\n');
+        s.append("compression.store.bytes ").append(getStoreBytesCompressed()).append('\n');
+        s.append("compression.store.us ").append(getStoreCompressionMicros()).append('\n');
+        s.append("compression.wire.raw.bytes ").append(getWireBytesUncompressed()).append('\n');
+        s.append("compression.wire.bytes ").append(getWireBytesCompressed()).append('\n');
+        s.append("compression.wire.us ").append(getWireCompressionMicros()).append('\n');
+        for (DavidPaulProtocol.Command command : COMMANDS) {
+            LatencyHistogram h = latencies[command.ordinal()];
+            String name = command.name();
+            s.append(name).append(".count ").append(commandCounts[command.ordinal()].sum()).append('\n');
+            s.append(name).append(".p50.us ").append(h.percentile(50) / 1000).append('\n');
+            s.append(name).append(".p99.us ").append(h.percentile(99) / 1000).append('\n');
+            s.append(name).append(".p999.us ").append(h.percentile(99.9) / 1000).append('\n');
+        }
+        return s.toString();
+    }
+}
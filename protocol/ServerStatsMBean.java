@@ -0,0 +1,113 @@
+package protocol;
+
+/**
+ * The JMX view of ServerStats.
+ * Commands are named as in the protocol, e.g. GET or MPUT.
+ */
+public interface ServerStatsMBean {
+
+    long getActiveSessions();
+
+    long getRejectedConnects();
+
+    /**
+     * @return -- the number of connections refused because the server had too many open
+     */
+    long getRefusedConnects();
+
+    /**
+     * @return -- the number of commands delayed for going over their session's rate
+     */
+    long getThrottledCommands();
+
+    /**
+     * @return -- the number of replicas this server, as a primary, is streaming to
+     */
+    long getReplicas();
+
+    /**
+     * @return -- how many bytes of its primary's log this server, as a replica, has still to apply
+     */
+    long getReplicationLagBytes();
+
+    /**
+     * @return -- how long the newest change this server, as a replica, applied took to arrive
+     */
+    long getReplicationLagMillis();
+
+    /**
+     * @return -- the number of invalidations pushed to sessions caching keys
+     */
+    long getInvalidations();
+
+    /**
+     * @return -- the number of STORED and DELETED events pushed to sessions watching keys
+     */
+    long getPushEvents();
+
+    /**
+     * @return -- the number of pushes lost to subscribers too far behind
+     */
+    long getPushDropped();
+
+    /**
+     * @return -- the number of sessions closed for falling too far behind their pushes
+     */
+    long getPushDisconnects();
+
+    /**
+     * @return -- the number of stored values found to have failed their checksums
+     */
+    long getIntegrityFailures();
+
+    /**
+     * @return -- the bytes of the values offered to the store's compressor, before compression
+     */
+    long getStoreBytesUncompressed();
+
+    /**
+     * @return -- the bytes of the same values as stored, so the ratio of the
+     * two is how much compression saves
+     */
+    long getStoreBytesCompressed();
+
+    /**
+     * @return -- the CPU time spent compressing and inflating stored values, in microseconds
+     */
+    long getStoreCompressionMicros();
+
+    /**
+     * @return -- the bytes sent and received by sessions with wire compression, before compression
+     */
+    long getWireBytesUncompressed();
+
+    /**
+     * @return -- the same bytes as they crossed the network
+     */
+    long getWireBytesCompressed();
+
+    /**
+     * @return -- the CPU time spent compressing and inflating session traffic, in microseconds
+     */
+    long getWireCompressionMicros();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return -- the number of times the command has completed
+     */
+    long getCount(String command);
+
+    /**
+     * @param percentile -- from 0 to 100, e.g. 99.9
+     * @return -- the server-side processing latency of the command at that percentile
+     */
+    long getLatencyMicros(String command, double percentile);
+
+    /**
+     * @return -- every figure as "name value" lines
+     */
+    String getSummary();
+}
@@ -0,0 +1,314 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The sessions open on the server, and the clientIDs they have claimed.
+ *
+ * A clientID is claimed with a single putIfAbsent on a ConcurrentHashMap
+ * and released only by the session which claimed it, so CONNECTs never
+ * wait on each other and a session refused for a duplicate clientID
+ * cannot release the other session's.
+ *
+ * Admission is checked as each socket is accepted: beyond MAX_SESSIONS
+ * open sockets, including those yet to CONNECT, the socket is refused
+ * straight away with CONNECT: BUSY instead of being given a thread.
+ *
+ * When IDLE_TIMEOUT_MILLIS is set, a session which has not sent a
+ * command for that long, whether idle, half-open or never connected, has
+ * its socket closed by a reaper thread, which ends the session and frees
+ * its clientID. A client which only waits for pushes is idle too, so the
+ * timeout is off by default and should be set well above the interval
+ * at which such clients and pooled sessions send anything.
+ *
+ * Each session may also be limited to COMMANDS_PER_SECOND, with bursts
+ * of up to COMMAND_BURST, by a token bucket. A session over its rate is
+ * not refused: its thread stops reading until it has a token, so the
+ * client is slowed down by TCP flow control.
+ *
+ * When the server shuts down, drain stops admitting sockets and ends
+ * every session once it has processed every command the client sent
+ * before then, including the rest of one it had only partly read, such
+ * as the value line of a PUT.
+ *
+ * The limits are set with the system properties protocol.session.max,
+ * protocol.session.idleTimeoutMillis (0, the default, for none),
+ * protocol.session.commandsPerSecond (0 for no limit) and
+ * protocol.session.commandBurst.
+ */
+final class SessionRegistry {
+
+    static final int MAX_SESSIONS = Integer.getInteger("protocol.session.max", 10000);
+    static final long IDLE_TIMEOUT_MILLIS = Long.getLong("protocol.session.idleTimeoutMillis", 0);
+    static final double COMMANDS_PER_SECOND = Double.parseDouble(
+        System.getProperty("protocol.session.commandsPerSecond", "0"));
+    static final int COMMAND_BURST = Integer.getInteger("protocol.session.commandBurst", 100);
+    // how long a refused socket is left open for the client to read why
+    private static final long REFUSAL_LINGER_MILLIS = 1000;
+    private static final byte[] CONNECT_BUSY = "CONNECT: BUSY\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerStats stats;
+    private final int maxSessions;
+    private final long idleTimeoutNanos;
+    private final double commandsPerSecond;
+    private final int commandBurst;
+    private final ConcurrentHashMap<String, Session> clientIDs = new ConcurrentHashMap<>();
+    private final Set<Session> open = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private volatile boolean draining;
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SessionReaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A registry with the limits set by the system properties.
+     * @param stats -- where refused connections are counted
+     */
+    SessionRegistry(ServerStats stats) {
+        this(stats, MAX_SESSIONS, IDLE_TIMEOUT_MILLIS, COMMANDS_PER_SECOND, COMMAND_BURST);
+    }
+
+    /**
+     * @param stats -- where refused connections are counted
+     * @param maxSessions -- the most sockets open at once
+     * @param idleTimeoutMillis -- how long a session may go without a command, 0 for ever
+     * @param commandsPerSecond -- the most commands each session may send a second, 0 for no limit
+     * @param commandBurst -- how many commands a session may send at once within its rate
+     */
+    SessionRegistry(ServerStats stats, int maxSessions, long idleTimeoutMillis,
+            double commandsPerSecond, int commandBurst) {
+        this.stats = stats;
+        this.maxSessions = maxSessions;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.commandsPerSecond = commandsPerSecond;
+        this.commandBurst = commandBurst;
+        if (idleTimeoutMillis > 0) {
+            long period = Math.max(100, Math.min(10000, idleTimeoutMillis / 4));
+            reaper.scheduleWithFixedDelay(this::reap, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Admits a newly accepted socket, or refuses it with CONNECT: BUSY
+     * and closes it shortly afterwards if too many are open.
+     * @return -- the socket's session, or null if it was refused
+     */
+    Session admit(Socket socket) {
+        if (draining) {
+            stats.connectRefused();
+            refuse(socket);
+            return null;
+        }
+        if (openCount.incrementAndGet() > maxSessions) {
+            openCount.decrementAndGet();
+            stats.connectRefused();
+            refuse(socket);
+            return null;
+        }
+        Session session = new Session(socket);
+        open.add(session);
+        return session;
+    }
+
+    /**
+     * @return -- the number of clientIDs claimed
+     */
+    int connected() {
+        return clientIDs.size();
+    }
+
+    /**
+     * Ends every session, refusing any socket admitted from now on. Each
+     * session carries on reading and processing whatever its client has
+     * already sent, and once it has nothing left to read and no command
+     * partly read it sees the end of its input, flushes its responses and
+     * ends as though the client had disconnected, see Session.input. A
+     * session already waiting for a command has its socket's input shut
+     * down to wake it. Sessions still open at the deadline, such as those
+     * blocked writing to a slow client or waiting for the rest of a
+     * command, have their sockets closed.
+     * @param deadlineNanos -- the System.nanoTime() to wait until
+     * @return -- the number of sessions which had to be closed at the deadline
+     */
+    int drain(long deadlineNanos) throws InterruptedException {
+        draining = true;
+        while (openCount.get() > 0 && System.nanoTime() < deadlineNanos) {
+            for (Session session : open) {
+                // a session not yet waiting will see draining itself before it waits
+                if (session.waiting && !session.inputShut) {
+                    session.inputShut = true;
+                    try {
+                        session.socket.shutdownInput();
+                    } catch (IOException e) {
+                        closeQuietly(session.socket);
+                    }
+                }
+            }
+            Thread.sleep(10);
+        }
+        int remaining = openCount.get();
+        for (Session session : open) {
+            closeQuietly(session.socket);
+        }
+        return remaining;
+    }
+
+    /**
+     * Closes the socket of every session idle for longer than the timeout.
+     */
+    private void reap() {
+        long now = System.nanoTime();
+        for (Session session : open) {
+            if (now - session.lastActiveNanos > idleTimeoutNanos && !session.reaped) {
+                session.reaped = true;
+                Log.info("Closing session {}, idle for over {} ms",
+                    session.clientID == null ? session.socket.getRemoteSocketAddress() : session.clientID,
+                    TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos));
+                closeQuietly(session.socket);
+            }
+        }
+    }
+
+    /**
+     * Tells the client the server is busy, without waiting for its CONNECT.
+     * The socket is only closed once the client has had time to read the
+     * refusal, as closing with its CONNECT unread would reset the
+     * connection and could lose the refusal with it.
+     */
+    private void refuse(Socket socket) {
+        try {
+            socket.getOutputStream().write(CONNECT_BUSY);
+            socket.shutdownOutput();
+            reaper.schedule(() -> closeQuietly(socket), REFUSAL_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closed either way
+        }
+    }
+
+    /**
+     * One open socket, from being accepted until its thread ends.
+     * Only the session's own thread calls its methods.
+     */
+    final class Session {
+        private final Socket socket;
+        private final TokenBucket commands;
+        private volatile long lastActiveNanos = System.nanoTime();
+        private volatile String clientID;
+        private volatile boolean reaped;
+        // true while the session's thread waits for a command, with nothing else to read
+        private volatile boolean waiting;
+        // only used by the draining thread
+        private boolean inputShut;
+        private boolean closed;
+
+        private Session(Socket socket) {
+            this.socket = socket;
+            this.commands = commandsPerSecond > 0 ? new TokenBucket(commandsPerSecond, commandBurst) : null;
+        }
+
+        /**
+         * @return -- true if the clientID was claimed for this session,
+         * false if another session holds it
+         */
+        boolean claim(String id) {
+            if (clientIDs.putIfAbsent(id, this) != null) {
+                return false;
+            }
+            clientID = id;
+            return true;
+        }
+
+        /**
+         * Wraps the socket's input so that, once the server is draining, a
+         * session with nothing more to read and no command partly read sees
+         * the end of its input instead of waiting for another command.
+         * @param in -- the socket's input
+         * @param betweenCommands -- true when the session has no command partly
+         * read, called only by the session's own thread as it is about to wait
+         * @return -- the input to read the session's commands from
+         */
+        InputStream input(InputStream in, BooleanSupplier betweenCommands) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (in.available() == 0 && betweenCommands.getAsBoolean()) {
+                        // set before draining is checked, and draining before this is,
+                        // so either the session ends here or drain wakes it
+                        waiting = true;
+                        if (draining) {
+                            waiting = false;
+                            return -1;
+                        }
+                    }
+                    try {
+                        return in.read(b, off, len);
+                    } finally {
+                        waiting = false;
+                    }
+                }
+            };
+        }
+
+        /**
+         * Marks the session active, as it has just read input.
+         */
+        void touch() {
+            lastActiveNanos = System.nanoTime();
+        }
+
+        /**
+         * Takes a token for a command from the session's bucket.
+         * @return -- 0, or the nanoseconds to wait before processing the command
+         */
+        long throttle() {
+            if (commands == null) {
+                return 0;
+            }
+            long wait = commands.take(System.nanoTime());
+            if (wait > 0) {
+                stats.commandThrottled();
+            }
+            return wait;
+        }
+
+        /**
+         * Releases the session's clientID, if it claimed one, and its place.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (clientID != null) {
+                clientIDs.remove(clientID, this);
+            }
+            open.remove(this);
+            openCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package protocol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A client which spreads keys over several Servers running the
+ * DavidPaulProtocol, so together they can hold more than any one of them.
+ *
+ * Each key is sent to the node which owns it on a consistent-hash ring.
+ * Every node is placed on the ring at a number of virtual points, and a
+ * key belongs to the node of the first point at or after the key's hash.
+ * With enough virtual points the keys are spread evenly, and adding a
+ * node to N takes over about 1/(N+1) of the keys, leaving every other
+ * key where it was. Moving the keys which changed owner is left to
+ * rebalance(), which uses SCAN to find them.
+ *
+ * Each node has its own ClientPool, so the client is thread-safe. The
+ * batch operations split their keys by node and send one batch command
+ * to each node in parallel.
+ *
+ * Nodes are named host:port.
+ */
+public class ShardedClient implements Closeable {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+    private static final int SCAN_PAGE = 1000;
+
+    /**
+     * The ring: points sorted by hash and the node owning each. Replaced
+     * as a whole when nodes are added or removed.
+     */
+    private static final class Ring {
+        private final long[] points;
+        private final String[] owners;
+
+        private Ring(long[] points, String[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+
+    private final String clientIdPrefix;
+    private final int virtualNodes;
+    private final int poolSize;
+    private final Map<String, ClientPool> pools = new LinkedHashMap<>();
+    private final ExecutorService fanOut;
+    private volatile Ring ring = new Ring(new long[0], new String[0]);
+
+    /**
+     * @param nodes -- the nodes to start with, as host:port
+     * @param clientIdPrefix -- sessions connect as clientIdPrefix@node-1, ...
+     * @param virtualNodes -- the number of points each node has on the ring
+     * @param poolSize -- the most sessions open to each node at once
+     * @throws IOException -- if a node cannot be connected to
+     */
+    public ShardedClient(List<String> nodes, String clientIdPrefix, int virtualNodes, int poolSize) throws IOException {
+        if (virtualNodes < 1 || poolSize < 1) {
+            throw new IllegalArgumentException("virtualNodes and poolSize must be at least 1");
+        }
+        this.clientIdPrefix = clientIdPrefix;
+        this.virtualNodes = virtualNodes;
+        this.poolSize = poolSize;
+        this.fanOut = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ShardedClient-fanOut");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (String node : nodes) {
+                addNode(node);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a node to the ring. Keys it now owns are only found on it once
+     * they have been stored again or moved with rebalance().
+     * @param node -- host:port
+     * @throws IOException -- if the node cannot be connected to
+     */
+    public synchronized void addNode(String node) throws IOException {
+        if (pools.containsKey(node)) {
+            return;
+        }
+        int colon = node.lastIndexOf(':');
+        if (colon < 0) { throw new IllegalArgumentException("Node must be host:port: " + node); }
+        ClientPool pool = new ClientPool(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)),
+            clientIdPrefix + "@" + node, 1, poolSize, 30000, 5000);
+        pools.put(node, pool);
+        rebuildRing();
+    }
+
+    /**
+     * Takes a node off the ring. The keys it held are not moved.
+     * @param node -- host:port
+     */
+    public synchronized void removeNode(String node) {
+        ClientPool pool = pools.remove(node);
+        if (pool != null) {
+            rebuildRing();
+            pool.close();
+        }
+    }
+
+    /**
+     * @return -- the node which owns key
+     */
+    public String nodeFor(String key) {
+        Ring r = ring;
+        if (r.points.length == 0) { throw new IllegalStateException("No nodes"); }
+        int i = Arrays.binarySearch(r.points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return r.owners[i == r.points.length ? 0 : i];
+    }
+
+    /**
+     * @return -- the value of key, or GET: ERROR if it is not stored
+     */
+    public String get(String key) throws IOException {
+        return poolFor(nodeFor(key)).send("GET " + key);
+    }
+
+    /**
+     * @return -- the response from the owning node, PUT: OK
+     */
+    public String put(String key, String value) throws IOException {
+        return poolFor(nodeFor(key)).send("PUT " + key, value);
+    }
+
+    /**
+     * @return -- the response from the owning node, DELETE: OK or DELETE: ERROR
+     */
+    public String delete(String key) throws IOException {
+        return poolFor(nodeFor(key)).send("DELETE " + key);
+    }
+
+    /**
+     * Fetches many keys with MGETs to each node that owns any of them, all
+     * sent in parallel, and split by Client into batches of at most MAX_BATCH.
+     * @return -- the value of each key in order, or GET: ERROR where a key is missing
+     */
+    public List<String> mget(List<String> keys) throws IOException {
+        Map<String, List<Integer>> byNode = groupByNode(keys);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> group : byNode.entrySet()) {
+            List<String> nodeKeys = new ArrayList<>(group.getValue().size());
+            for (int i : group.getValue()) {
+                nodeKeys.add(keys.get(i));
+            }
+            ClientPool pool = poolFor(group.getKey());
+            results.add(fanOut.submit(() -> withClient(pool, c -> c.mget(nodeKeys))));
+        }
+        String[] values = new String[keys.size()];
+        int g = 0;
+        for (List<Integer> positions : byNode.values()) {
+            List<String> nodeValues = await(results.get(g++));
+            for (int j = 0; j < positions.size(); j++) {
+                values[positions.get(j)] = nodeValues.get(j);
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Stores many pairs with MPUTs to each node that owns any of them, all
+     * sent in parallel, and split by Client into batches of at most MAX_BATCH.
+     * @return -- the number of pairs stored
+     */
+    public int mput(Map<String, String> pairs) throws IOException {
+        Map<String, Map<String, String>> byNode = new LinkedHashMap<>();
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            byNode.computeIfAbsent(nodeFor(pair.getKey()), n -> new LinkedHashMap<>())
+                .put(pair.getKey(), pair.getValue());
+        }
+        List<Future<Integer>> results = new ArrayList<>();
+        for (Map.Entry<String, Map<String, String>> group : byNode.entrySet()) {
+            ClientPool pool = poolFor(group.getKey());
+            results.add(fanOut.submit(() -> withClient(pool, c -> count(c.mput(group.getValue()), "MPUT: OK "))));
+        }
+        return sumCounts(results);
+    }
+
+    /**
+     * Deletes many keys with MDELETEs to each node that owns any of them,
+     * all sent in parallel, and split by Client into batches of at most MAX_BATCH.
+     * @return -- the number of keys which existed and were deleted
+     */
+    public int mdelete(List<String> keys) throws IOException {
+        Map<String, List<Integer>> byNode = groupByNode(keys);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> group : byNode.entrySet()) {
+            List<String> nodeKeys = new ArrayList<>(group.getValue().size());
+            for (int i : group.getValue()) {
+                nodeKeys.add(keys.get(i));
+            }
+            ClientPool pool = poolFor(group.getKey());
+            results.add(fanOut.submit(() -> withClient(pool, c -> count(c.mdelete(nodeKeys), "MDELETE: OK "))));
+        }
+        return sumCounts(results);
+    }
+
+    /**
+     * Moves every key held by a node which no longer owns it to the node
+     * which does, after nodes have been added. Each node is scanned for
+     * its keys and the strays are copied and then deleted, one node at a
+     * time. Writes to a key while it is being moved may be lost, so this
+     * is best run while the keys are not being changed. The nodes must
+     * keep an ordered index for SCAN, and values must be single lines.
+     * @return -- the number of keys moved
+     */
+    public synchronized int rebalance() throws IOException {
+        int moved = 0;
+        for (Map.Entry<String, ClientPool> node : pools.entrySet()) {
+            Client client = node.getValue().borrow();
+            try {
+                List<String> strays = new ArrayList<>();
+                for (String key : client.scan("", SCAN_PAGE)) {
+                    if (!nodeFor(key).equals(node.getKey())) {
+                        strays.add(key);
+                    }
+                }
+                for (int start = 0; start < strays.size(); start += SCAN_PAGE) {
+                    List<String> page = strays.subList(start, Math.min(strays.size(), start + SCAN_PAGE));
+                    List<String> values = client.mget(page);
+                    Map<String, String> pairs = new LinkedHashMap<>();
+                    for (int i = 0; i < page.size(); i++) {
+                        // a key deleted since the SCAN has nothing to move
+                        if (!values.get(i).equals("GET: ERROR")) {
+                            pairs.put(page.get(i), values.get(i));
+                        }
+                    }
+                    if (!pairs.isEmpty()) {
+                        mput(pairs);
+                    }
+                    client.mdelete(page);
+                    moved += pairs.size();
+                }
+                node.getValue().release(client);
+            } catch (IOException | RuntimeException e) {
+                node.getValue().invalidate(client);
+                throw e;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Closes every node's pool.
+     */
+    public synchronized void close() {
+        fanOut.shutdownNow();
+        for (ClientPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+        ring = new Ring(new long[0], new String[0]);
+    }
+
+    /**
+     * A request made with a borrowed session.
+     */
+    private interface Call<T> {
+        T call(Client client) throws IOException;
+    }
+
+    /**
+     * Borrows a session, makes the call and returns the session to the
+     * pool, or closes it if the call failed or had an unexpected answer,
+     * as the session may no longer be in step with the server.
+     */
+    private static <T> T withClient(ClientPool pool, Call<T> call) throws IOException {
+        Client client = pool.borrow();
+        try {
+            T result = call.call(client);
+            pool.release(client);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            pool.invalidate(client);
+            throw e;
+        }
+    }
+
+    private static <T> T await(Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return -- the count in a batch response such as MPUT: OK n
+     * @throws IOException -- if the response is not the expected one, so
+     * that withClient closes the session rather than return it to the pool
+     */
+    private static int count(String response, String prefix) throws IOException {
+        if (!response.startsWith(prefix)) {
+            throw new IOException("Unexpected response: " + response);
+        }
+        try {
+            return Integer.parseInt(response.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected response: " + response);
+        }
+    }
+
+    private static int sumCounts(List<Future<Integer>> results) throws IOException {
+        int total = 0;
+        for (Future<Integer> result : results) {
+            total += await(result);
+        }
+        return total;
+    }
+
+    /**
+     * @return -- the positions of the keys, grouped by the node which owns them
+     */
+    private Map<String, List<Integer>> groupByNode(List<String> keys) {
+        Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byNode.computeIfAbsent(nodeFor(keys.get(i)), n -> new ArrayList<>()).add(i);
+        }
+        return byNode;
+    }
+
+    private synchronized ClientPool poolFor(String node) throws IOException {
+        ClientPool pool = pools.get(node);
+        if (pool == null) { throw new IOException("Node " + node + " has been removed"); }
+        return pool;
+    }
+
+    /**
+     * Places virtualNodes points on the ring for every node.
+     */
+    private void rebuildRing() {
+        int n = pools.size() * virtualNodes;
+        long[] hashes = new long[n];
+        String[] nodes = new String[n];
+        int i = 0;
+        for (String node : pools.keySet()) {
+            for (int v = 0; v < virtualNodes; v++) {
+                hashes[i] = hash(node + "#" + v);
+                nodes[i] = node;
+                i++;
+            }
+        }
+        // sort the points, carrying their owners with them
+        Integer[] order = new Integer[n];
+        for (int j = 0; j < n; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        long[] points = new long[n];
+        String[] owners = new String[n];
+        for (int j = 0; j < n; j++) {
+            points[j] = hashes[order[j]];
+            owners[j] = nodes[order[j]];
+        }
+        ring = new Ring(points, owners);
+    }
+
+    /**
+     * A 64 bit hash of the bytes of s: FNV-1a, then the MurmurHash3
+     * finaliser to spread similar keys such as key1, key2 around the ring.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.ISO_8859_1)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe1c1ac8fL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,540 @@
+package protocol;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Key-value storage split into a fixed number of shards, each a HashMap
+ * guarded by its own lock, so sessions working on different keys rarely
+ * wait for each other.
+ *
+ * Keys passed in may be KeyProbes pointing into a session's receive
+ * buffer; only keys newly added to a shard are copied with retain(),
+ * so overwriting an existing key allocates nothing but the value.
+ *
+ * The batch operations sort their keys by shard first and then take each
+ * shard's lock once for all of the keys that fall in it, rather than once
+ * per key.
+ *
+ * A store may also keep an ordered index of its keys, a skip list which
+ * scan reads without taking any lock, so listing a range of keys does
+ * not hold up sessions reading and writing. Keys enter and leave the
+ * index inside their shard's lock, as they enter and leave the shard,
+ * at the cost of an index update whenever a key is added or removed.
+ *
+ * MutationListeners may be added to be told of every change to the store,
+ * which is how a replication primary logs the changes it ships and how
+ * clients caching keys are told to drop them.
+ *
+ * Every value stored is given a version from its shard's counter, so the
+ * versions of the values stored under a key always increase, even when
+ * it is deleted and stored again. update changes a value inside its
+ * shard's lock, for operations such as compare-and-set and increment
+ * which must read and write a key without another change in between.
+ *
+ * A store may be given a ValueCompressor, which compresses the values
+ * stored as arrays by put and putAll, outside the shard locks, before
+ * they are stored.
+ *
+ * A store may also check the integrity of its values, see setChecksums:
+ * each heap value is sealed with a CRC32C before it is stored, outside
+ * the shard lock where the value is built outside it, and verified by
+ * get and getAll after the lock is released. A value which fails is
+ * logged and counted, and read as though the key had no value.
+ *
+ * Values read with get or getAll have been retained for the caller, who
+ * must release them once finished with, so that a file-backed value
+ * replaced or deleted meanwhile is not closed while it is being sent.
+ */
+public class ShardedStore {
+
+    public static final int DEFAULT_SHARDS = 64;
+    // shard version counters are this many longs apart, a cache line, so
+    // writers to neighbouring shards do not contend for one line
+    private static final int VERSION_STRIDE = 8;
+
+    private final HashMap<ByteKey, StoredValue>[] shards;
+    private final int mask;
+    // the last version given in each shard, guarded by the shard
+    private final long[] versions;
+    // every key in the store, in order, or null if the store is not ordered
+    private final NavigableSet<ByteKey> index;
+    // copied on write, so changes read it without a lock
+    private volatile MutationListener[] listeners = new MutationListener[0];
+    // compresses values stored as arrays, or null to store them as they are
+    private volatile ValueCompressor compressor;
+    // where values failing their checksums are counted, or null if values are not checksummed
+    private volatile ServerStats checksums;
+
+    /**
+     * Told of every key stored or deleted, inside the lock of the key's
+     * shard, so changes to any one key are seen in the order they were
+     * made. Implementations must be quick and must not call back into
+     * the store.
+     */
+    public interface MutationListener {
+
+        /**
+         * @param key -- the key, which may be a probe and must be retained to be kept
+         * @param value -- the value, which must be retained to be kept
+         */
+        void stored(ByteKey key, StoredValue value);
+
+        /**
+         * @param key -- the key, which may be a probe and must be retained to be kept
+         */
+        void deleted(ByteKey key);
+    }
+
+    /**
+     * Computes a key's new value from its current one, see update.
+     */
+    public interface Update {
+
+        /**
+         * @param current -- the key's value, or null if it has none, only to be used during the call
+         * @return -- the value to store, whose reference passes to the store,
+         * or null to leave the key as it is
+         */
+        StoredValue apply(StoredValue current) throws IOException;
+    }
+
+    /**
+     * @param shardCount -- the number of shards, rounded up to a power of two
+     */
+    public ShardedStore(int shardCount) {
+        this(shardCount, false);
+    }
+
+    /**
+     * @param shardCount -- the number of shards, rounded up to a power of two
+     * @param ordered -- true to keep an ordered index of the keys for scan
+     */
+    public ShardedStore(int shardCount, boolean ordered) {
+        if (shardCount < 1) { throw new IllegalArgumentException("shardCount must be at least 1"); }
+        int n = Integer.highestOneBit(shardCount);
+        if (n < shardCount) { n <<= 1; }
+        shards = newShards(n);
+        for (int i = 0; i < n; i++) {
+            shards[i] = new HashMap<>();
+        }
+        mask = n - 1;
+        versions = new long[n * VERSION_STRIDE];
+        index = ordered ? new ConcurrentSkipListSet<>() : null;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static HashMap<ByteKey, StoredValue>[] newShards(int n) {
+        // there are no arrays of a generic type, only of the raw one
+        return new HashMap[n];
+    }
+
+    /**
+     * @return -- the value stored under key, retained for the caller,
+     * or null if there is none
+     */
+    public StoredValue get(ByteKey key) {
+        HashMap<ByteKey, StoredValue> shard = shards[shardOf(key)];
+        StoredValue value;
+        synchronized (shard) {
+            value = shard.get(key);
+            if (value == null) {
+                return null;
+            }
+            value.retain();
+        }
+        return verified(key, value);
+    }
+
+    /**
+     * @param value -- a value read from the store and retained
+     * @return -- the value, or null, having released it, if it fails its checksum
+     */
+    private StoredValue verified(ByteKey key, StoredValue value) {
+        if (isIntact(key, value)) {
+            return value;
+        }
+        value.release();
+        return null;
+    }
+
+    /**
+     * @return -- false, having logged and counted it, if the value fails its checksum
+     */
+    private boolean isIntact(ByteKey key, StoredValue value) {
+        ServerStats stats = checksums;
+        if (stats == null || value.verify()) {
+            return true;
+        }
+        stats.integrityFailure();
+        // the key may be a probe which is reused before the log is written
+        Log.error("The value of {} failed its checksum", key.toString());
+        return false;
+    }
+
+    public void put(ByteKey key, byte[] value) {
+        put(key, valueOf(value));
+    }
+
+    /**
+     * @param value -- the value, which must not be changed afterwards
+     * @return -- the value as put would store it, compressed if the store
+     * compresses values of its length
+     */
+    public StoredValue valueOf(byte[] value) {
+        ValueCompressor c = compressor;
+        StoredValue stored = c == null ? StoredValue.of(value) : c.compress(value);
+        if (checksums != null) {
+            stored.seal();
+        }
+        return stored;
+    }
+
+    /**
+     * Seals every value stored from now on with a checksum, and verifies
+     * the checksums of values read, or stops if stats is null. Values
+     * already stored are not checked.
+     * @param stats -- where values failing their checksums are counted, or null
+     */
+    void setChecksums(ServerStats stats) {
+        this.checksums = stats;
+    }
+
+    /**
+     * Compresses the values stored from now on with compressor, or stops
+     * compressing them if it is null. Values already stored are left as they are.
+     */
+    void setCompressor(ValueCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * @param value -- the value, whose reference passes to the store
+     */
+    public void put(ByteKey key, StoredValue value) {
+        if (checksums != null) {
+            value.seal();
+        }
+        int shardIndex = shardOf(key);
+        HashMap<ByteKey, StoredValue> shard = shards[shardIndex];
+        StoredValue old;
+        synchronized (shard) {
+            old = putInShard(shardIndex, key, value);
+        }
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    /**
+     * Changes the value of a key atomically. The update is given the
+     * current value inside the shard's lock, so no other change to the 
+     * key can come between it being read and the new value stored. The
+     * update should be quick, as it holds up the whole shard. If the
+     * current value fails its checksum the update is not applied.
+     * @return -- the key's value afterwards, retained for the caller, or null
+     * if it has none or its value failed its checksum
+     * @throws IOException -- if the update fails, leaving the key as it was
+     */
+    public StoredValue update(ByteKey key, Update update) throws IOException {
+        int shardIndex = shardOf(key);
+        HashMap<ByteKey, StoredValue> shard = shards[shardIndex];
+        StoredValue old;
+        StoredValue result;
+        synchronized (shard) {
+            StoredValue current = shard.get(key);
+            if (current != null && !isIntact(key, current)) {
+                // nothing is built on a corrupt value
+                return null;
+            }
+            result = update.apply(current);
+            if (result == null) {
+                return current == null ? null : current.retain();
+            }
+            if (checksums != null) {
+                result.seal();
+            }
+            old = putInShard(shardIndex, key, result);
+            result.retain();
+        }
+        if (old != null) {
+            old.release();
+        }
+        return result;
+    }
+
+    /**
+     * @return -- true if the key was present and has been removed
+     */
+    public boolean delete(ByteKey key) {
+        HashMap<ByteKey, StoredValue> shard = shards[shardOf(key)];
+        StoredValue old;
+        synchronized (shard) {
+            old = removeFromShard(shard, key);
+        }
+        if (old == null) {
+            return false;
+        }
+        old.release();
+        return true;
+    }
+
+    /**
+     * Looks up every key, locking each shard once.
+     * @return -- the values in the same order as the keys, each retained
+     * for the caller, null where a key is missing
+     */
+    public StoredValue[] getAll(List<ByteKey> keys) {
+        StoredValue[] values = new StoredValue[keys.size()];
+        forEachByShard(keys, (shardIndex, shard, i) -> {
+            StoredValue value = shard.get(keys.get(i));
+            values[i] = value == null ? null : value.retain();
+        });
+        if (checksums != null) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    values[i] = verified(keys.get(i), values[i]);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Stores every key-value pair, locking each shard once. Where a key
+     * appears more than once the last value given wins.
+     */
+    public void putAll(List<ByteKey> keys, List<byte[]> values) {
+        StoredValue[] stored = new StoredValue[values.size()];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = valueOf(values.get(i));
+        }
+        forEachByShard(keys, (shardIndex, shard, i) -> {
+            StoredValue old = putInShard(shardIndex, keys.get(i), stored[i]);
+            if (old != null) {
+                old.release();
+            }
+        });
+    }
+
+    /**
+     * Removes every key, locking each shard once.
+     * @return -- the number of keys which were present and have been removed
+     */
+    public int deleteAll(List<ByteKey> keys) {
+        int[] deleted = new int[1];
+        forEachByShard(keys, (shardIndex, shard, i) -> {
+            StoredValue old = removeFromShard(shard, keys.get(i));
+            if (old != null) {
+                old.release();
+                deleted[0]++;
+            }
+        });
+        return deleted[0];
+    }
+
+    /**
+     * @param listener -- told of every change from now on, after the listeners already added
+     */
+    public synchronized void addListener(MutationListener listener) {
+        MutationListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+
+    /**
+     * Removes every key.
+     */
+    public void clear() {
+        for (HashMap<ByteKey, StoredValue> shard : shards) {
+            List<StoredValue> removed;
+            synchronized (shard) {
+                removed = new ArrayList<>(shard.values());
+                for (ByteKey key : shard.keySet()) {
+                    if (index != null) {
+                        index.remove(key);
+                    }
+                    for (MutationListener l : listeners) {
+                        l.deleted(key);
+                    }
+                }
+                shard.clear();
+            }
+            for (StoredValue value : removed) {
+                value.release();
+            }
+        }
+    }
+
+    /**
+     * @return -- the number of shards, for copyShard
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Copies out the contents of one shard, holding its lock only while
+     * the references are copied, for walking the whole store a shard at
+     * a time.
+     * @param shard -- from 0 to shardCount() - 1
+     * @param keys -- has the keys added to it
+     * @param values -- has the values added to it, each retained for the caller
+     */
+    public void copyShard(int shard, List<ByteKey> keys, List<StoredValue> values) {
+        HashMap<ByteKey, StoredValue> s = shards[shard];
+        synchronized (s) {
+            for (Map.Entry<ByteKey, StoredValue> entry : s.entrySet()) {
+                keys.add(entry.getKey());
+                values.add(entry.getValue().retain());
+            }
+        }
+    }
+
+    /**
+     * @return -- true if the store keeps an ordered index, so scan can be used
+     */
+    public boolean isOrdered() {
+        return index != null;
+    }
+
+    /**
+     * Lists keys in order without locking, so keys added or removed during
+     * the scan may or may not be seen, but every key present throughout is.
+     * @param prefix -- only keys starting with this are listed
+     * @param after -- only keys after this are listed, or null to start from the first
+     * @param limit -- the most keys to list
+     * @return -- the keys, in order
+     * @throws IllegalStateException -- if the store is not ordered
+     */
+    public List<ByteKey> scan(ByteKey prefix, ByteKey after, int limit) {
+        if (index == null) { throw new IllegalStateException("Store has no ordered index"); }
+        NavigableSet<ByteKey> tail = after != null && after.compareTo(prefix) >= 0
+            ? index.tailSet(after, false) : index.tailSet(prefix, true);
+        List<ByteKey> keys = new ArrayList<>(Math.min(limit, 1024));
+        for (ByteKey key : tail) {
+            // keys sharing a prefix are next to each other, so the first
+            // key without it ends the scan
+            if (keys.size() == limit || !key.startsWith(prefix)) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * @return -- the total number of keys stored, not taken atomically across shards
+     */
+    public int size() {
+        int size = 0;
+        for (HashMap<ByteKey, StoredValue> shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * An existing mapping keeps its key object, so the key only needs
+     * retaining when it is new to the shard. Must be called holding the
+     * shard's lock.
+     * @return -- the value replaced, for the caller to release, or null
+     */
+    private StoredValue putInShard(int shardIndex, ByteKey key, StoredValue value) {
+        HashMap<ByteKey, StoredValue> shard = shards[shardIndex];
+        value.setVersion(++versions[shardIndex * VERSION_STRIDE]);
+        StoredValue old = shard.replace(key, value);
+        if (old == null) {
+            ByteKey kept = key.retain();
+            shard.put(kept, value);
+            if (index != null) {
+                index.add(kept);
+            }
+        }
+        for (MutationListener l : listeners) {
+            l.stored(key, value);
+        }
+        return old;
+    }
+
+    /**
+     * @return -- the value removed, for the caller to release, or null
+     */
+    private StoredValue removeFromShard(HashMap<ByteKey, StoredValue> shard, ByteKey key) {
+        StoredValue old = shard.remove(key);
+        if (old != null) {
+            if (index != null) {
+                index.remove(key);
+            }
+            for (MutationListener l : listeners) {
+                l.deleted(key);
+            }
+        }
+        return old;
+    }
+
+    private int shardOf(ByteKey key) {
+        int h = key.hashCode();
+        // mix the high bits in, as HashMap does, so the low bits pick the shard
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * What getAll, putAll and deleteAll do with one of their keys, called
+     * with the key's shard locked.
+     */
+    private interface KeyAction {
+        void apply(int shardIndex, HashMap<ByteKey, StoredValue> shard, int keyIndex);
+    }
+
+    /**
+     * Applies action to every key, grouped by shard so that each shard
+     * is locked once.
+     */
+    private void forEachByShard(List<ByteKey> keys, KeyAction action) {
+        int[] order = groupByShard(keys);
+        int start = 0;
+        while (start < order.length) {
+            int shardIndex = shardOf(keys.get(order[start]));
+            HashMap<ByteKey, StoredValue> shard = shards[shardIndex];
+            int end = start;
+            synchronized (shard) {
+                while (end < order.length && shardOf(keys.get(order[end])) == shardIndex) {
+                    action.apply(shardIndex, shard, order[end]);
+                    end++;
+                }
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Counting sort of the key positions by shard, which keeps keys
+     * within a shard in their original order.
+     * @return -- indexes into keys, with all keys for a shard next to each other
+     */
+    private int[] groupByShard(List<ByteKey> keys) {
+        int[] shardOfKey = new int[keys.size()];
+        int[] starts = new int[shards.length + 1];
+        for (int i = 0; i < shardOfKey.length; i++) {
+            shardOfKey[i] = shardOf(keys.get(i));
+            starts[shardOfKey[i] + 1]++;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[shardOfKey.length];
+        for (int i = 0; i < shardOfKey.length; i++) {
+            order[starts[shardOfKey[i]]++] = i;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,208 @@
+package protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * A value held by a ShardedStore: either a byte array on the heap, 
+ * possibly compressed by a ValueCompressor, or, for large values, the
+ * contents of a file outside the heap. A compressed value is inflated
+ * by bytes and writeTo, and its length is that of the value inflated.
+ *
+ * A file-backed value holds its file open for as long as it is in use.
+ * The store holds one reference and every reader takes another for the
+ * duration of its read, via ShardedStore.get; the file is closed, and
+ * being opened with DELETE_ON_CLOSE removed, when the last is released.
+ * For heap values retain and release do nothing.
+ *
+ * Each value is given a version by the store when it is stored, which
+ * is greater than that of any value stored under the same key before,
+ * so a client can tell whether a key has changed since it read it.
+ *
+ * A heap value may be sealed with a CRC32C of its bytes as held, after
+ * compression if it is compressed, so that a store checking integrity
+ * can tell if they have changed since, such as by a bit flip in memory.
+ * Values held in files are not checksummed.
+ */
+public final class StoredValue {
+
+    private final byte[] bytes;
+    private final FileChannel file;
+    private final long length;
+    // the compressor which compressed bytes, or null if they are not compressed
+    private final ValueCompressor compressor;
+    private final AtomicInteger references;
+    // set once, inside the shard lock, before the value is visible to readers
+    private long version;
+    // set once by seal, before the value is stored
+    private int checksum;
+    private boolean sealed;
+
+    private StoredValue(byte[] bytes, FileChannel file, long length, ValueCompressor compressor) {
+        this.bytes = bytes;
+        this.file = file;
+        this.length = length;
+        this.compressor = compressor;
+        this.references = file == null ? null : new AtomicInteger(1);
+    }
+
+    /**
+     * @param bytes -- the value, which must not be changed afterwards
+     */
+    public static StoredValue of(byte[] bytes) {
+        return new StoredValue(bytes, null, bytes.length, null);
+    }
+
+    /**
+     * @param compressed -- the value compressed by compressor, which must not be changed afterwards
+     * @param length -- the length of the value before compression
+     */
+    static StoredValue ofCompressed(byte[] compressed, int length, ValueCompressor compressor) {
+        return new StoredValue(compressed, null, length, compressor);
+    }
+
+    /**
+     * @param file -- a channel over the value's file, owned by the value from now on
+     * @param length -- the length of the value, from the start of the file
+     */
+    static StoredValue ofFile(FileChannel file, long length) {
+        return new StoredValue(null, file, length, null);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return -- the version the store gave the value, or 0 if it has not been stored
+     */
+    public long version() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isFileBacked() {
+        return file != null;
+    }
+
+    public boolean isCompressed() {
+        return compressor != null;
+    }
+
+    /**
+     * Records the checksum of a heap value's bytes, for verify. Must be
+     * called before the value is shared, and does nothing the second time.
+     */
+    void seal() {
+        if (file == null && !sealed) {
+            checksum = checksumOf(bytes);
+            sealed = true;
+        }
+    }
+
+    /**
+     * @return -- false if the value was sealed and its bytes no longer match
+     */
+    boolean verify() {
+        return !sealed || checksumOf(bytes) == checksum;
+    }
+
+    private static int checksumOf(byte[] b) {
+        CRC32C crc = new CRC32C();
+        crc.update(b, 0, b.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return -- the value as an array; a heap value's own array, which
+     * must not be changed, or the value inflated or read from its file
+     * @throws IOException -- if the file cannot be read, or holds more than an
+     * array can, or the compressed value is corrupt
+     */
+    public byte[] bytes() throws IOException {
+        if (compressor != null) {
+            return compressor.inflate(bytes, (int) length);
+        }
+        if (file == null) {
+            return bytes;
+        }
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Value too large for an array: " + length);
+        }
+        ByteBuffer copy = ByteBuffer.allocate((int) length);
+        while (copy.hasRemaining()) {
+            if (file.read(copy, copy.position()) < 0) {
+                throw new EOFException("Value file is shorter than the value");
+            }
+        }
+        return copy.array();
+    }
+
+    /**
+     * Writes the value to out. If a channel is given and the value is in
+     * a file, out is flushed and the file is sent to the channel with
+     * FileChannel.transferTo, so its bytes are never copied onto the heap.
+     * @param out -- where heap values, and file values with no channel, are written
+     * @param channel -- the channel under out, or null if there is none
+     * @return -- the number of bytes sent straight to the channel rather than through out
+     */
+    public long writeTo(OutputStream out, WritableByteChannel channel) throws IOException {
+        if (file == null) {
+            out.write(bytes());
+            return 0;
+        }
+        if (channel != null) {
+            out.flush();
+            long position = 0;
+            while (position < length) {
+                position += file.transferTo(position, length - position, channel);
+            }
+            return length;
+        }
+        // no channel, so copy through a small buffer instead
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(length, 64 * 1024));
+        long position = 0;
+        while (position < length) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), length - position));
+            int n = file.read(chunk, position);
+            if (n < 0) {
+                throw new EOFException("Value file is shorter than the value");
+            }
+            out.write(chunk.array(), 0, n);
+            position += n;
+        }
+        return 0;
+    }
+
+    /**
+     * Takes another reference to a file-backed value.
+     * @return -- this value
+     */
+    StoredValue retain() {
+        if (references != null) {
+            references.incrementAndGet();
+        }
+        return this;
+    }
+
+    /**
+     * Gives up a reference, closing the file when it was the last one.
+     */
+    public void release() {
+        if (references != null && references.decrementAndGet() == 0) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.warn("Could not close value file: {}", e.getMessage());
+            }
+        }
+    }
+}
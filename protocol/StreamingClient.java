@@ -0,0 +1,132 @@
+package protocol;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A blocking client for storing and fetching values of any size with
+ * the PUTC and GETC commands of the DavidPaulProtocol. Values are
+ * streamed from and to the caller's streams, so neither end needs to
+ * hold a whole value in memory.
+ */
+public class StreamingClient implements Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final BufferedInputStream in;
+    private final BufferedOutputStream out;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    private StreamingClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+    }
+
+    /**
+     * Connects to the server as the given clientID.
+     * @param hostName -- the name of the host, e.g. localhost
+     * @param portNumber -- the port number the server is listening on
+     * @param clientID -- the clientID to connect as
+     * @return -- the connected client
+     * @throws IOException -- if the connection failed or the server refused the clientID
+     */
+    public static StreamingClient open(String hostName, int portNumber, String clientID) throws IOException {
+        Socket socket = new Socket(hostName, portNumber);
+        try {
+            socket.setTcpNoDelay(true);
+            StreamingClient client = new StreamingClient(socket);
+            String response = client.request("CONNECT " + clientID);
+            if (!response.equals("CONNECT: OK")) {
+                throw new IOException("Server refused connection: " + response);
+            }
+            return client;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends everything remaining in value as the value of key, one chunk
+     * per read from value.
+     * @return -- the number of bytes the server stored
+     * @throws IOException -- if reading value or talking to the server failed
+     */
+    public long put(String key, InputStream value) throws IOException {
+        writeLine("PUTC " + key);
+        int n;
+        while ((n = value.read(chunk)) != -1) {
+            if (n > 0) {
+                writeLine(Integer.toHexString(n));
+                out.write(chunk, 0, n);
+            }
+        }
+        String response = request("0");
+        if (!response.startsWith("PUTC: OK ")) {
+            throw new IOException("Unexpected response: " + response);
+        }
+        return Long.parseLong(response.substring("PUTC: OK ".length()));
+    }
+
+    /**
+     * Fetches the value of key, writing it to sink as it arrives.
+     * @return -- the length of the value, or -1 if the key is not stored
+     * @throws IOException -- if writing to sink or talking to the server failed
+     */
+    public long get(String key, OutputStream sink) throws IOException {
+        String response = request("GETC " + key);
+        if (response.equals("GETC: ERROR")) {
+            return -1;
+        }
+        if (!response.startsWith("GETC: ")) {
+            throw new IOException("Unexpected response: " + response);
+        }
+        long length = Long.parseLong(response.substring("GETC: ".length()));
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed inside a value");
+            }
+            sink.write(chunk, 0, n);
+            remaining -= n;
+        }
+        return length;
+    }
+
+    /**
+     * Ends the session and closes the connection.
+     */
+    public void close() throws IOException {
+        try {
+            request("DISCONNECT");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends one line and reads the one line response.
+     */
+    private String request(String line) throws IOException {
+        writeLine(line);
+        out.flush();
+        StringBuilder response = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Server closed the connection");
+            }
+            response.append((char) b);
+        }
+        return response.toString();
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write('\n');
+    }
+}
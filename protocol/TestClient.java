@@ -1,9 +1,28 @@
 package protocol;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
 /**
  * Test suite for the Server/Client. 
  * 
- * Connects to the Server running on localhost on port 7.
+ * Connects to the Server running on localhost on port 7. The
+ * replication test also needs it started with -replicationPort 7100,
+ * and is skipped otherwise. The sharding, session limit, slow subscriber
+ * and shutdown tests start their own servers on ports 7201 to 7206.
  * 
  * Runs correctness tests and concurrency tests for 
  * connections to the server and adherance to the 
@@ -41,6 +60,70 @@ public class TestClient {
         }
 
     }
+    /**
+     * Starts another Server in its own process, from the same classes as
+     * this test.
+     * @param options -- system properties for the server, as -Dname=value
+     */
+    private static Process startServer(int port, String... options) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.addAll(Arrays.asList(options));
+        command.add("protocol.MultiServer");
+        command.add(Integer.toString(port));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    }
+
+    private static boolean isListening(int port) {
+        try {
+            new java.net.Socket("localhost", port).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return -- the value of one figure from STATS, or -1 if it is not listed
+     */
+    private static long statsFigure(Client c, String name) throws IOException {
+        String header = c.request("STATS");
+        int count = Integer.parseInt(header.substring("STATS: ".length()));
+        long value = -1;
+        for (int i = 0; i < count; i++) {
+            String figure = c.request();
+            if (figure.startsWith(name + " ")) {
+                value = Long.parseLong(figure.substring(name.length() + 1));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Polls a condition for up to 5 seconds, for changes which happen
+     * asynchronously such as replication.
+     * @return -- true if the condition became true in time
+     */
+    private static boolean waitFor(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * A series of tests for a Server running the
      * DavidPaulProtocol.
@@ -155,6 +238,833 @@ public class TestClient {
             System.out.println("test 10 passed");
         }
 
+        // test #11 - pipelined puts and gets are answered in order
+        c = new Client("localhost", 7);
+        c.send("CONNECT Pipeline");
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            requests.add("PUT key" + i);
+            requests.add("value" + i);
+            requests.add("GET key" + i);
+        }
+        List<String> responses = c.sendPipelined(requests, 16);
+        boolean pipelineOk = responses.size() == 200;
+        for (int i = 0; pipelineOk && i < 100; i++) {
+            pipelineOk = responses.get(2 * i).equals("PUT: OK")
+                && responses.get(2 * i + 1).equals("value" + i);
+        }
+        // CAS and APPEND are followed by a value line too
+        List<String> updates = Arrays.asList("DELETE pipelined", "CAS pipelined 0", "first",
+            "APPEND pipelined", "!", "GET pipelined");
+        responses = c.sendPipelined(updates, 16);
+        pipelineOk &= responses.size() == 4 && responses.get(1).startsWith("CAS: OK ")
+            && responses.get(2).equals("APPEND: OK 6") && responses.get(3).equals("first!");
+        try {
+            c.sendPipelined(Arrays.asList("GETV pipelined"), 16);
+            pipelineOk = false;
+        } catch (IllegalArgumentException expected) {
+            // answered with two lines
+        }
+        if (pipelineOk) {
+            System.out.println("test 11 succeeded");
+        } else {
+            System.out.println("test 11 failed");
+        }
+        c.send("DISCONNECT");
+
+        // test #12 - asynchronous client matches responses to requests in order
+        try (AsyncClient async = new AsyncClient("localhost", 7, 128)) {
+            async.connect("Async").join();
+            List<CompletableFuture<String>> gets = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                async.put("akey" + i, "avalue" + i);
+                gets.add(async.get("akey" + i));
+            }
+            boolean asyncOk = true;
+            for (int i = 0; i < 50; i++) {
+                asyncOk &= gets.get(i).join().equals("avalue" + i);
+            }
+            asyncOk &= async.disconnect().join().equals("DISCONNECT: OK");
+            if (asyncOk) {
+                System.out.println("test 12 succeeded");
+            } else {
+                System.out.println("test 12 failed");
+            }
+        } catch (Exception e) {
+            System.out.println("test 12 failed - " + e);
+        }
+
+        // test #13 - pooled sessions are shared between threads and replaced when broken
+        try (ClientPool pool = new ClientPool("localhost", 7, "Pooled", 2, 4, 10000, 5000)) {
+            Thread[] workers = new Thread[8];
+            boolean[] workerOk = new boolean[workers.length];
+            for (int t = 0; t < workers.length; t++) {
+                final int id = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            pool.send("PUT pool" + id + "-" + i, "v" + i);
+                        }
+                        workerOk[id] = true;
+                    } catch (IOException e) {
+                        workerOk[id] = false;
+                    }
+                });
+                workers[t].start();
+            }
+            boolean poolOk = true;
+            for (int t = 0; t < workers.length; t++) {
+                workers[t].join();
+                poolOk &= workerOk[t];
+            }
+            // break a session behind the pool's back, the next send should still work
+            Client broken = pool.borrow();
+            broken.close();
+            pool.release(broken);
+            poolOk &= pool.send("DELETE pool0-0").startsWith("DELETE: ");
+            // a server which drops every session after one request: reads are sent
+            // again on a new session, writes are not, as they may have been applied
+            java.net.ServerSocket listener = new java.net.ServerSocket(0);
+            try (ClientPool dropping = new ClientPool("localhost", listener.getLocalPort(), "Dropped",
+                    0, 1, 10000, 5000)) {
+                List<String> received = new ArrayList<>();
+                Thread server = new Thread(() -> {
+                    while (true) {
+                        try (java.net.Socket accepted = listener.accept()) {
+                            BufferedReader fakeRequests = new BufferedReader(
+                                new InputStreamReader(accepted.getInputStream(), StandardCharsets.US_ASCII));
+                            fakeRequests.readLine();
+                            accepted.getOutputStream().write("CONNECT: OK\n".getBytes(StandardCharsets.US_ASCII));
+                            synchronized (received) {
+                                received.add(fakeRequests.readLine());
+                            }
+                        } catch (IOException e) {
+                            return;
+                        }
+                    }
+                });
+                server.start();
+                try {
+                    dropping.send("PUT dropped", "v");
+                    poolOk = false;
+                } catch (IOException expected) {
+                    // not sent again
+                }
+                try {
+                    dropping.send("GET dropped");
+                    poolOk = false;
+                } catch (IOException expected) {
+                    // sent again, and failed again
+                }
+                listener.close();
+                server.join();
+                poolOk &= received.equals(Arrays.asList("PUT dropped", "GET dropped", "GET dropped"));
+            } finally {
+                listener.close();
+            }
+            if (poolOk) {
+                System.out.println("test 13 succeeded");
+            } else {
+                System.out.println("test 13 failed");
+            }
+        } catch (Exception e) {
+            System.out.println("test 13 failed - " + e);
+        }
+
+        // test #14 - batch commands store, fetch and delete many keys at once
+        try {
+            c = Client.open("localhost", 7, 5000);
+            c.request("CONNECT Batch");
+            Map<String, String> pairs = new LinkedHashMap<>();
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                pairs.put("bkey" + i, "bvalue" + i);
+                keys.add("bkey" + i);
+            }
+            boolean batchOk = c.mput(pairs).equals("MPUT: OK 1000");
+            keys.add("missing");
+            List<String> values = c.mget(keys);
+            for (int i = 0; batchOk && i < 1000; i++) {
+                batchOk = values.get(i).equals("bvalue" + i);
+            }
+            batchOk &= values.get(1000).equals("GET: ERROR");
+            batchOk &= c.mdelete(keys).equals("MDELETE: OK 1000");
+            batchOk &= c.request("MGET x").equals("MGET: ERROR");
+            // more keys than one batch may hold are sent as several
+            Map<String, String> many = new LinkedHashMap<>();
+            for (int i = 0; i < DavidPaulProtocol.MAX_BATCH + 5; i++) {
+                many.put("many" + i, "v" + i);
+            }
+            List<String> manyKeys = new ArrayList<>(many.keySet());
+            batchOk &= c.mput(many).equals("MPUT: OK " + many.size());
+            List<String> manyValues = c.mget(manyKeys);
+            batchOk &= manyValues.size() == many.size() && manyValues.get(many.size() - 1).equals("v" + (many.size() - 1));
+            batchOk &= c.mdelete(manyKeys).equals("MDELETE: OK " + many.size());
+            c.request("DISCONNECT");
+            // a batch too large to hold is read to its end and refused, so its
+            // lines are never taken for commands
+            DavidPaulProtocol local = new DavidPaulProtocol(new ShardedStore(4), new ServerStats());
+            local.connect("CONNECT Batch");
+            local.processInput("MPUT " + (DavidPaulProtocol.MAX_BATCH + 1));
+            String last = null;
+            for (int i = 0; i < 2 * (DavidPaulProtocol.MAX_BATCH + 1); i++) {
+                last = local.processInput(i % 2 == 0 ? "PUT injected" : "boom");
+            }
+            batchOk &= "MPUT: ERROR".equals(last);
+            batchOk &= local.processInput("GET injected").equals("GET: ERROR");
+            String large = "x".repeat((int) (DavidPaulProtocol.MAX_BATCH_BYTES / 2 + 1));
+            local.processInput("MPUT 2");
+            local.processInput("large1");
+            local.processInput(large);
+            local.processInput("large2");
+            batchOk &= local.processInput(large).equals("MPUT: ERROR");
+            batchOk &= local.processInput("GET large1").equals("GET: ERROR");
+            if (batchOk) {
+                System.out.println("test 14 succeeded");
+            } else {
+                System.out.println("test 14 failed");
+            }
+        } catch (IOException e) {
+            System.out.println("test 14 failed - " + e);
+        }
+
+        // test #15 - binary sessions carry any bytes, and share storage with text sessions
+        try (BinaryClient b = BinaryClient.open("localhost", 7, "Binary")) {
+            byte[] key = "bin\nkey".getBytes(StandardCharsets.ISO_8859_1);
+            byte[] value = new byte[200000];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = (byte) i;
+            }
+            boolean binaryOk = b.put(key, value);
+            binaryOk &= Arrays.equals(b.get(key), value);
+            binaryOk &= b.delete(key);
+            binaryOk &= b.get(key) == null;
+            binaryOk &= b.put("shared".getBytes(StandardCharsets.US_ASCII), "text".getBytes(StandardCharsets.US_ASCII));
+            Client t = Client.open("localhost", 7, 5000);
+            t.request("CONNECT BinaryText");
+            binaryOk &= t.request("GET shared").equals("text");
+            t.request("DISCONNECT");
+            if (binaryOk) {
+                System.out.println("test 15 succeeded");
+            } else {
+                System.out.println("test 15 failed");
+            }
+        } catch (IOException e) {
+            System.out.println("test 15 failed - " + e);
+        }
+
+        // test #16 - STATS reports the commands run so far, as counts which
+        // only change when commands are run
+        try {
+            c = Client.open("localhost", 7, 5000);
+            c.request("CONNECT Stats");
+            long gets = statsFigure(c, "GET.count");
+            long rejected = statsFigure(c, "connect.rejected");
+            c.request("GET stats");
+            boolean statsOk = statsFigure(c, "GET.count") == gets + 1;
+            statsOk &= rejected >= 0 && statsFigure(c, "connect.rejected") == rejected;
+            c.request("DISCONNECT");
+            if (statsOk) {
+                System.out.println("test 16 succeeded");
+            } else {
+                System.out.println("test 16 failed");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("test 16 failed - " + e);
+        }
+
+        // test #17 - chunked values of any size and content, large ones served from a file
+        try (StreamingClient s = StreamingClient.open("localhost", 7, "Streaming")) {
+            byte[] large = new byte[3 * 1024 * 1024 + 17];
+            for (int i = 0; i < large.length; i++) {
+                large[i] = (byte) (i * 31);
+            }
+            boolean streamOk = s.put("large", new ByteArrayInputStream(large)) == large.length;
+            ByteArrayOutputStream fetched = new ByteArrayOutputStream();
+            streamOk &= s.get("large", fetched) == large.length;
+            streamOk &= Arrays.equals(fetched.toByteArray(), large);
+            streamOk &= s.put("small", new ByteArrayInputStream("a\nb".getBytes(StandardCharsets.US_ASCII))) == 3;
+            fetched.reset();
+            streamOk &= s.get("small", fetched) == 3 && fetched.toString(StandardCharsets.US_ASCII).equals("a\nb");
+            streamOk &= s.get("missing", fetched) == -1;
+            c = Client.open("localhost", 7, 5000);
+            c.request("CONNECT StreamingText");
+            streamOk &= c.request("DELETE large").equals("DELETE: OK");
+            c.request("DISCONNECT");
+            streamOk &= s.get("large", fetched) == -1;
+            if (streamOk) {
+                System.out.println("test 17 succeeded");
+            } else {
+                System.out.println("test 17 failed");
+            }
+        } catch (IOException e) {
+            System.out.println("test 17 failed - " + e);
+        }
+
+        // test #18 - SCAN pages through keys with a prefix in order
+        try {
+            c = Client.open("localhost", 7, 5000);
+            c.request("CONNECT Scan");
+            Map<String, String> scanPairs = new LinkedHashMap<>();
+            List<String> expected = new ArrayList<>();
+            for (int i = 24; i >= 0; i--) {
+                scanPairs.put("scan:" + (char) ('a' + i), "v");
+                expected.add(0, "scan:" + (char) ('a' + i));
+            }
+            scanPairs.put("scanx", "not in the prefix");
+            c.mput(scanPairs);
+            boolean scanOk = c.scan("scan:", 7).equals(expected);
+            scanOk &= c.scan("scan:", 100).equals(expected);
+            scanOk &= c.scan("nothing here", 5).isEmpty();
+            scanOk &= c.request("SCAN scan: 0 0").equals("SCAN: ERROR");
+            scanOk &= c.request("SCAN scan: 5 zz").equals("SCAN: ERROR");
+            c.request("DISCONNECT");
+            if (scanOk) {
+                System.out.println("test 18 succeeded");
+            } else {
+                System.out.println("test 18 failed");
+            }
+        } catch (IOException e) {
+            System.out.println("test 18 failed - " + e);
+        }
+
+        // test #19 - a replica gets a snapshot, then later changes, and refuses writes
+        // (needs the server started with -replicationPort 7100)
+        ShardedStore replicaStore = new ShardedStore(4);
+        ReplicationReplica replica = new ReplicationReplica("localhost", 7100, replicaStore, new ServerStats());
+        replica.start();
+        try {
+            if (!waitFor(() -> replica.isSynced())) {
+                System.out.println("test 19 skipped - no replication port 7100");
+            } else {
+                c = Client.open("localhost", 7, 5000);
+                c.request("CONNECT Primary");
+                c.request("PUT replicated", "after snapshot");
+                c.request("DELETE scan:a");
+                boolean replicaOk = waitFor(() -> replicaStore.get(ByteKey.of("replicated")) != null);
+                replicaOk &= replicaStore.get(ByteKey.of("shared")) != null;
+                replicaOk &= waitFor(() -> replicaStore.get(ByteKey.of("scan:a")) == null);
+                c.request("DISCONNECT");
+                DavidPaulProtocol readOnly = new DavidPaulProtocol(replicaStore, new ServerStats(), true);
+                readOnly.connect("CONNECT Reader");
+                replicaOk &= readOnly.processInput("GET replicated").equals("after snapshot");
+                replicaOk &= readOnly.processInput("PUT replicated") == null;
+                replicaOk &= readOnly.processInput("changed").equals("PUT: ERROR");
+                replicaOk &= readOnly.processInput("DELETE replicated").equals("DELETE: ERROR");
+                replicaOk &= readOnly.processInput("GET replicated").equals("after snapshot");
+                if (replicaOk) {
+                    System.out.println("test 19 succeeded");
+                } else {
+                    System.out.println("test 19 failed");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("test 19 failed - " + e);
+        } finally {
+            replica.shutdown();
+        }
+
+        // test #20 - a sharded client spreads keys over several servers, and adding
+        // a node moves about a quarter of them to it
+        List<Process> nodes = new ArrayList<>();
+        ShardedClient sharded = null;
+        try {
+            for (int port = 7201; port <= 7203; port++) {
+                nodes.add(startServer(port));
+            }
+            for (int port = 7201; port <= 7203; port++) {
+                int p = port;
+                if (!waitFor(() -> isListening(p))) {
+                    throw new IOException("server on port " + p + " did not start");
+                }
+            }
+            sharded = new ShardedClient(Arrays.asList("localhost:7201", "localhost:7202"), "Sharded",
+                ShardedClient.DEFAULT_VIRTUAL_NODES, 4);
+            Map<String, String> pairs = new LinkedHashMap<>();
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                pairs.put("shard" + i, "value" + i);
+                keys.add("shard" + i);
+            }
+            boolean shardedOk = sharded.mput(pairs) == 1000;
+            Map<String, String> before = new LinkedHashMap<>();
+            int onFirst = 0;
+            for (String key : keys) {
+                before.put(key, sharded.nodeFor(key));
+                onFirst += sharded.nodeFor(key).equals("localhost:7201") ? 1 : 0;
+            }
+            shardedOk &= onFirst > 400 && onFirst < 600;
+            Client direct = Client.open("localhost", 7201, 5000);
+            direct.request("CONNECT Direct");
+            shardedOk &= direct.scan("", 100).size() == onFirst;
+            direct.request("DISCONNECT");
+
+            sharded.addNode("localhost:7203");
+            int moved = 0;
+            for (String key : keys) {
+                String owner = sharded.nodeFor(key);
+                if (!owner.equals(before.get(key))) {
+                    moved++;
+                    shardedOk &= owner.equals("localhost:7203");
+                }
+            }
+            shardedOk &= moved > 250 && moved < 420;
+            shardedOk &= sharded.rebalance() == moved;
+            List<String> values = sharded.mget(keys);
+            for (int i = 0; i < keys.size(); i++) {
+                shardedOk &= values.get(i).equals("value" + i);
+            }
+            shardedOk &= sharded.get("shard7").equals("value7");
+            shardedOk &= sharded.delete("shard7").equals("DELETE: OK");
+            shardedOk &= sharded.mdelete(keys) == 999;
+            if (shardedOk) {
+                System.out.println("test 20 succeeded");
+            } else {
+                System.out.println("test 20 failed");
+            }
+        } catch (IOException e) {
+            System.out.println("test 20 failed - " + e);
+        } finally {
+            if (sharded != null) {
+                sharded.close();
+            }
+            for (Process node : nodes) {
+                node.destroy();
+            }
+        }
+
+        // test #21 - a near-cache answers repeated reads itself, drops keys
+        // other sessions change, and reads its own writes
+        try {
+            Client cached = Client.open("localhost", 7, 5000);
+            Client writer = Client.open("localhost", 7, 5000);
+            cached.request("CONNECT Cached");
+            writer.request("CONNECT Writer");
+            cached.enableNearCache(100);
+            writer.request("PUT hot", "v1");
+            boolean cacheOk = cached.get("hot").equals("v1");
+            cacheOk &= cached.get("hot").equals("v1") && cached.nearCacheHits() == 1;
+            writer.request("PUT hot", "v2");
+            cacheOk &= waitFor(() -> {
+                try {
+                    return cached.get("hot").equals("v2");
+                } catch (IOException e) {
+                    return false;
+                }
+            });
+            cacheOk &= cached.request("PUT hot", "v3").equals("PUT: OK") && cached.get("hot").equals("v3");
+            writer.request("DELETE hot");
+            cacheOk &= waitFor(() -> {
+                try {
+                    return cached.get("hot").equals("GET: ERROR");
+                } catch (IOException e) {
+                    return false;
+                }
+            });
+            DavidPaulProtocol inProcess = new DavidPaulProtocol();
+            inProcess.connect("CONNECT InProcess");
+            cacheOk &= inProcess.processInput("TRACKING ON").equals("TRACKING: ERROR");
+            // a session's tracked keys are forgotten when it ends, not when they next change
+            PushDispatcher dispatcher = new PushDispatcher(new ShardedStore(4), new ServerStats());
+            PushDispatcher.Subscriber ended = dispatcher.subscriber(new ByteArrayOutputStream(), () -> { });
+            ended.setTracking(true);
+            ended.track(ByteKey.of("tracked:a"));
+            ended.track(ByteKey.of("tracked:b"));
+            cacheOk &= dispatcher.trackedKeys() == 2;
+            ended.close();
+            cacheOk &= dispatcher.trackedKeys() == 0;
+            cached.request("DISCONNECT");
+            writer.request("DISCONNECT");
+            if (cacheOk) {
+                System.out.println("test 21 succeeded");
+            } else {
+                System.out.println("test 21 failed");
+            }
+        } catch (IOException e) {
+            System.out.println("test 21 failed - " + e);
+        }
+
+        // test #22 - a refused duplicate CONNECT leaves the other session's clientID 
+        // alone, and a server with session limits refuses, throttles and reaps
+        Process limited = null;
+        try {
+            Client first = Client.open("localhost", 7, 5000);
+            boolean sessionsOk = first.request("CONNECT Unique").equals("CONNECT: OK");
+            Client duplicate = Client.open("localhost", 7, 5000);
+            sessionsOk &= duplicate.request("CONNECT Unique").equals("CONNECT: ERROR");
+            Thread.sleep(200);
+            Client again = Client.open("localhost", 7, 5000);
+            sessionsOk &= again.request("CONNECT Unique").equals("CONNECT: ERROR");
+            first.request("DISCONNECT");
+
+            limited = startServer(7204, "-Dprotocol.session.max=2", "-Dprotocol.session.idleTimeoutMillis=500",
+                "-Dprotocol.session.commandsPerSecond=50", "-Dprotocol.session.commandBurst=5");
+            if (!waitFor(() -> isListening(7204))) {
+                throw new IOException("server on port 7204 did not start");
+            }
+            // waitFor's own connection may still be open for a moment
+            Thread.sleep(100);
+            Client idle = Client.open("localhost", 7204, 5000);
+            Client busy = Client.open("localhost", 7204, 5000);
+            sessionsOk &= idle.request("CONNECT Idle").equals("CONNECT: OK");
+            sessionsOk &= busy.request("CONNECT Busy").equals("CONNECT: OK");
+            Client refused = Client.open("localhost", 7204, 5000);
+            sessionsOk &= refused.request("CONNECT Refused").equals("CONNECT: BUSY");
+            refused.close();
+            List<String> gets = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                gets.add("GET throttled");
+            }
+            long start = System.nanoTime();
+            busy.sendPipelined(gets, 25);
+            sessionsOk &= System.nanoTime() - start > 300_000_000L;
+            Thread.sleep(1500);
+            try {
+                idle.request("GET reaped");
+                sessionsOk = false;
+            } catch (IOException e) {
+                // the idle session was closed
+            }
+            Client admitted = Client.open("localhost", 7204, 5000);
+            sessionsOk &= admitted.request("CONNECT Admitted").equals("CONNECT: OK");
+            admitted.request("DISCONNECT");
+            if (sessionsOk) {
+                System.out.println("test 22 succeeded");
+            } else {
+                System.out.println("test 22 failed");
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("test 22 failed - " + e);
+        } finally {
+            if (limited != null) {
+                limited.destroy();
+            }
+        }
+
+        // test #23 - counters, compare-and-set and append are atomic in the store
+        try {
+            Client atomic = Client.open("localhost", 7, 5000);
+            atomic.request("CONNECT Atomic");
+            atomic.request("DELETE counter");
+            List<CompletableFuture<Void>> incrementers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int id = t;
+                incrementers.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        Client c2 = Client.open("localhost", 7, 5000);
+                        c2.request("CONNECT Incrementer" + id);
+                        for (int i = 0; i < 500; i++) {
+                            c2.increment("counter", 1);
+                        }
+                        c2.request("DISCONNECT");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            CompletableFuture.allOf(incrementers.toArray(new CompletableFuture<?>[0])).join();
+            boolean atomicOk = atomic.request("GET counter").equals("4000");
+            atomicOk &= atomic.increment("counter", -4010) == -10;
+            atomicOk &= atomic.request("INCR counter x").equals("INCR: ERROR");
+            atomic.request("PUT word", "abc");
+            atomicOk &= atomic.request("INCR word 1").equals("INCR: ERROR");
+
+            atomic.request("DELETE versioned");
+            long created = atomic.compareAndSet("versioned", 0, "first");
+            atomicOk &= created > 0 && atomic.compareAndSet("versioned", 0, "again") == -1;
+            Client.Versioned read = atomic.getVersioned("versioned");
+            atomicOk &= read.value.equals("first") && read.version == created;
+            long updated = atomic.compareAndSet("versioned", read.version, "second");
+            atomicOk &= updated > created;
+            atomicOk &= atomic.compareAndSet("versioned", read.version, "stale") == -1;
+            atomicOk &= atomic.request("GET versioned").equals("second");
+            atomicOk &= atomic.getVersioned("no such key") == null;
+
+            atomic.request("DELETE appended");
+            atomicOk &= atomic.append("appended", "abc") == 3 && atomic.append("appended", "def") == 6;
+            atomicOk &= atomic.request("GET appended").equals("abcdef");
+            atomic.request("DISCONNECT");
+            if (atomicOk) {
+                System.out.println("test 23 succeeded");
+            } else {
+                System.out.println("test 23 failed");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("test 23 failed - " + e);
+        }
+
+        // test #24 - changes to watched keys and subscribed prefixes are pushed 
+        // in order, and a subscriber which stops reading is disconnected
+        Process slow = null;
+        try {
+            Client watcher = Client.open("localhost", 7, 5000);
+            Client changer = Client.open("localhost", 7, 5000);
+            watcher.request("CONNECT Watcher");
+            changer.request("CONNECT Changer");
+            watcher.watch("watched");
+            watcher.subscribe("feed:");
+            changer.request("PUT watched", "1");
+            changer.request("PUT feed:a", "2");
+            changer.request("PUT unwatched", "3");
+            changer.request("DELETE feed:a");
+            List<String> received = new ArrayList<>();
+            boolean watchOk = waitFor(() -> {
+                try {
+                    String push;
+                    while ((push = watcher.pollPush()) != null) {
+                        received.add(push);
+                    }
+                    return received.size() >= 3;
+                } catch (IOException e) {
+                    return false;
+                }
+            });
+            watchOk &= received.equals(Arrays.asList("STORED watched", "STORED feed:a", "DELETED feed:a"));
+            watchOk &= watcher.request("UNSUBSCRIBE feed:").equals("UNSUBSCRIBE: OK");
+            watchOk &= watcher.request("UNWATCH watched").equals("UNWATCH: OK");
+            changer.request("PUT watched", "4");
+            changer.request("PUT feed:b", "5");
+            Thread.sleep(200);
+            watchOk &= watcher.pollPush() == null;
+            DavidPaulProtocol inProcess = new DavidPaulProtocol();
+            inProcess.connect("CONNECT InProcess");
+            watchOk &= inProcess.processInput("WATCH watched").equals("WATCH: ERROR");
+            watcher.request("DISCONNECT");
+
+            slow = startServer(7205, "-Dprotocol.push.queueLength=16");
+            if (!waitFor(() -> isListening(7205))) {
+                throw new IOException("server on port 7205 did not start");
+            }
+            Client stalled = Client.open("localhost", 7205, 5000);
+            Client flooder = Client.open("localhost", 7205, 5000);
+            stalled.request("CONNECT Stalled");
+            flooder.request("CONNECT Flooder");
+            stalled.subscribe("");
+            // the stalled client never reads again, so once the socket buffers
+            // fill its pushes queue up on the server
+            char[] padding = new char[2000];
+            Arrays.fill(padding, 'k');
+            Map<String, String> pairs = new LinkedHashMap<>();
+            for (int i = 0; i < 500; i++) {
+                pairs.put(new String(padding) + i, "v");
+            }
+            for (int round = 0; round < 100 && statsFigure(flooder, "push.disconnects") < 1; round++) {
+                flooder.mput(pairs);
+            }
+            watchOk &= statsFigure(flooder, "push.disconnects") == 1;
+            flooder.request("DISCONNECT");
+            if (watchOk) {
+                System.out.println("test 24 succeeded");
+            } else {
+                System.out.println("test 24 failed");
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("test 24 failed - " + e);
+        } finally {
+            if (slow != null) {
+                slow.destroy();
+            }
+        }
+
+        // test #25 - values are compressed in the store and on the wire, and 
+        // read back unchanged by every command
+        try {
+            StringBuilder json = new StringBuilder();
+            for (int i = 0; i < 40; i++) {
+                json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"tags\":[\"a\",\"b\"]},");
+            }
+            String document = json.toString();
+            ServerStats compressionStats = new ServerStats();
+            ShardedStore compressed = new ShardedStore(4);
+            compressed.setCompressor(new ValueCompressor(64, ValueCompressor.LEVEL, compressionStats));
+            DavidPaulProtocol local = new DavidPaulProtocol(compressed, compressionStats);
+            local.connect("CONNECT Compressed");
+            local.processInput("PUT doc");
+            local.processInput(document);
+            boolean compressionOk = local.processInput("GET doc").equals(document);
+            compressionOk &= local.processInput("GETC doc").startsWith("GETC: " + document.length() + "\n");
+            local.processInput("APPEND doc");
+            compressionOk &= local.processInput("!").equals("APPEND: OK " + (document.length() + 1));
+            compressionOk &= local.processInput("GET doc").equals(document + "!");
+            local.processInput("PUT short");
+            local.processInput("12");
+            compressionOk &= local.processInput("INCR short 1").equals("INCR: 13");
+            compressionOk &= compressionStats.getStoreBytesCompressed() * 3 < compressionStats.getStoreBytesUncompressed();
+
+            Client deflated = Client.open("localhost", 7, 5000);
+            compressionOk &= deflated.connectCompressed("Deflated").equals("CONNECT: OK");
+            compressionOk &= deflated.request("PUT deflated", document).equals("PUT: OK");
+            compressionOk &= deflated.request("GET deflated").equals(document);
+            List<String> repeated = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                repeated.add("GET deflated");
+            }
+            compressionOk &= deflated.sendPipelined(repeated, 50).stream().allMatch(document::equals);
+            compressionOk &= statsFigure(deflated, "compression.wire.bytes") * 3 
+                < statsFigure(deflated, "compression.wire.raw.bytes");
+            deflated.request("DISCONNECT");
+            if (compressionOk) {
+                System.out.println("test 25 succeeded");
+            } else {
+                System.out.println("test 25 failed");
+            }
+        } catch (IOException e) {
+            System.out.println("test 25 failed - " + e);
+        }
+
+        // test #26 - a server with several acceptors serves clients connecting
+        // at once, and when killed finishes the commands already sent, ends
+        // the sessions cleanly and exits
+        Process acceptors = null;
+        List<Client> acceptedClients = new ArrayList<>();
+        try {
+            acceptors = startServer(7206, "-Dprotocol.acceptors=3", "-Dprotocol.shutdown.deadlineMillis=3000");
+            if (!waitFor(() -> isListening(7206))) {
+                throw new IOException("server on port 7206 did not start");
+            }
+            List<CompletableFuture<Client>> connecting = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                int id = i;
+                connecting.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Client c2 = Client.open("localhost", 7206, 5000);
+                        if (!c2.request("CONNECT Acceptor" + id).equals("CONNECT: OK")
+                                || !c2.request("PUT accepted" + id, "yes").equals("PUT: OK")) {
+                            throw new IOException("client " + id + " was not served");
+                        }
+                        return c2;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            for (CompletableFuture<Client> f : connecting) {
+                acceptedClients.add(f.join());
+            }
+            java.net.Socket idle = new java.net.Socket("localhost", 7206);
+            idle.getOutputStream().write("CONNECT Idle\n".getBytes(StandardCharsets.US_ASCII));
+            byte[] connectOk = idle.getInputStream().readNBytes("CONNECT: OK\n".length());
+            boolean shutdownOk = new String(connectOk, StandardCharsets.US_ASCII).equals("CONNECT: OK\n");
+            java.net.Socket pipelined = new java.net.Socket("localhost", 7206);
+            BufferedReader pipelinedResponses = new BufferedReader(
+                new InputStreamReader(pipelined.getInputStream(), StandardCharsets.US_ASCII));
+            pipelined.getOutputStream().write("CONNECT Pipelined\n".getBytes(StandardCharsets.US_ASCII));
+            shutdownOk &= "CONNECT: OK".equals(pipelinedResponses.readLine());
+            StringBuilder puts = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                puts.append("PUT draining").append(i).append("\nvalue\n");
+            }
+            // the last PUT's value follows once the server has begun shutting down
+            puts.append("PUT draining1000\n");
+            pipelined.getOutputStream().write(puts.toString().getBytes(StandardCharsets.US_ASCII));
+            acceptors.destroy();
+            Thread.sleep(100);
+            pipelined.getOutputStream().write("value\n".getBytes(StandardCharsets.US_ASCII));
+            shutdownOk &= acceptors.waitFor(5, TimeUnit.SECONDS);
+            // the session was ended cleanly, rather than the connection reset
+            shutdownOk &= idle.getInputStream().read() == -1;
+            idle.close();
+            int stored = 0;
+            String drained;
+            while ((drained = pipelinedResponses.readLine()) != null) {
+                stored += drained.equals("PUT: OK") ? 1 : 0;
+            }
+            pipelined.close();
+            shutdownOk &= stored == 1001;
+            shutdownOk &= !isListening(7206);
+            if (shutdownOk) {
+                System.out.println("test 26 succeeded");
+            } else {
+                System.out.println("test 26 failed");
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            System.out.println("test 26 failed - " + e);
+        } finally {
+            for (Client c2 : acceptedClients) {
+                c2.close();
+            }
+            if (acceptors != null) {
+                acceptors.destroyForcibly();
+            }
+        }
+
+        // test #27 - a value damaged in the store is refused rather than
+        // served, and responses are checked against the server's checksums
+        try {
+            ServerStats integrityStats = new ServerStats();
+            ShardedStore sealed = new ShardedStore(4);
+            sealed.setChecksums(integrityStats);
+            DavidPaulProtocol local = new DavidPaulProtocol(sealed, integrityStats);
+            local.connect("CONNECT Sealed");
+            local.processInput("PUT sealed");
+            local.processInput("intact");
+            local.processInput("PUT damaged");
+            local.processInput("intact");
+            boolean integrityOk = local.processInput("GET damaged").equals("intact");
+            StoredValue damaged = sealed.get(ByteKey.of("damaged"));
+            damaged.bytes()[0] ^= 1;
+            damaged.release();
+            integrityOk &= local.processInput("GET damaged").equals("GET: ERROR");
+            integrityOk &= local.processInput("GET sealed").equals("intact");
+            integrityOk &= integrityStats.getIntegrityFailures() == 1;
+
+            Client checked = Client.open("localhost", 7, 5000);
+            integrityOk &= checked.connectChecked("Checked").equals("CONNECT: OK");
+            integrityOk &= checked.request("PUT checked", "value").equals("PUT: OK");
+            integrityOk &= checked.request("GET checked").equals("value");
+            List<String> repeated = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                repeated.add("GET checked");
+            }
+            integrityOk &= checked.sendPipelined(repeated, 50).stream().allMatch("value"::equals);
+            integrityOk &= statsFigure(checked, "integrity.failures") == 0;
+            checked.request("DISCONNECT");
+            try (BinaryClient binaryChecked = BinaryClient.openChecked("localhost", 7, "BinaryChecked")) {
+                byte[] raw = { 'r', '\n', 0, (byte) 0xff };
+                integrityOk &= binaryChecked.put("checked-raw".getBytes(StandardCharsets.US_ASCII), raw);
+                integrityOk &= Arrays.equals(binaryChecked.get("checked-raw".getBytes(StandardCharsets.US_ASCII)), raw);
+                integrityOk &= binaryChecked.get("checked-missing".getBytes(StandardCharsets.US_ASCII)) == null;
+            }
+
+            // a server whose checksum does not match what it sent
+            try (java.net.ServerSocket listener = new java.net.ServerSocket(0)) {
+                CompletableFuture<Void> serving = CompletableFuture.runAsync(() -> {
+                    try (java.net.Socket accepted = listener.accept()) {
+                        BufferedReader fakeRequests = new BufferedReader(
+                            new InputStreamReader(accepted.getInputStream(), StandardCharsets.US_ASCII));
+                        OutputStream fakeResponses = accepted.getOutputStream();
+                        fakeRequests.readLine();
+                        fakeResponses.write("CONNECT: OK\n".getBytes(StandardCharsets.US_ASCII));
+                        fakeRequests.readLine();
+                        fakeResponses.write("value\n\u001fCRC 00000000\n".getBytes(StandardCharsets.US_ASCII));
+                        fakeRequests.readLine();
+                        fakeResponses.write("value\n".getBytes(StandardCharsets.US_ASCII));
+                        fakeRequests.readLine();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                Client damagedWire = Client.open("localhost", listener.getLocalPort(), 5000);
+                integrityOk &= damagedWire.connectChecked("Damaged").equals("CONNECT: OK");
+                damagedWire.request("GET damaged");
+                try {
+                    damagedWire.request("GET damaged");
+                    integrityOk = false;
+                } catch (IOException expected) {
+                    integrityOk &= expected.getMessage().contains("checksum");
+                }
+                damagedWire.close();
+                serving.join();
+            }
+            if (integrityOk) {
+                System.out.println("test 27 succeeded");
+            } else {
+                System.out.println("test 27 failed");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("test 27 failed - " + e);
+        }
+
         // test suite for concurrent clients
         concurrencyTests();
     }
@@ -0,0 +1,43 @@
+package protocol;
+
+/**
+ * A token bucket rate limiter for a single thread. Tokens are added at a
+ * steady rate up to a burst; each operation takes one. An operation
+ * with no token available still takes one, leaving the bucket in debt,
+ * and is told how long to wait for it, so operations made as fast as
+ * possible are spaced out at the rate.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastNanos;
+
+    /**
+     * @param perSecond -- the rate tokens are added at
+     * @param burst -- the most tokens the bucket holds, which it starts with
+     */
+    TokenBucket(double perSecond, double burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate must be positive and the burst at least 1");
+        }
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a token.
+     * @param nowNanos -- the current System.nanoTime()
+     * @return -- 0 if a token was available, otherwise the nanoseconds to
+     * wait before going ahead
+     */
+    long take(long nowNanos) {
+        tokens = Math.min(burst, tokens + (nowNanos - lastNanos) * tokensPerNano);
+        lastNanos = nowNanos;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,136 @@
+package protocol;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the values a ShardedStore holds on the heap, with Deflater
+ * at a low level, so repetitive text such as JSON takes a fraction of
+ * the memory.
+ *
+ * Only values of at least the threshold's length are compressed, as
+ * small ones gain little and cost as much CPU per byte, and a value is
+ * only kept compressed if that saves at least an eighth of it. A
+ * compressed value is inflated each time it is read, by the session
+ * reading it, so compression trades CPU on every read for memory.
+ *
+ * Deflaters and Inflaters are kept in small pools shared by every
+ * session, as creating them allocates their native state. The server has
+ * a thread per session, so keeping one per thread would hold that state
+ * for every session which ever touched a compressed value until the
+ * garbage collector happened to free it; instead, one borrowed when the
+ * pool is empty is ended when it is returned to a full pool. The bytes before and after compression
+ * and the time spent compressing and inflating are counted in ServerStats.
+ *
+ * The server compresses values when started with the system property
+ * protocol.compression.threshold, the shortest value in bytes to
+ * compress (0, the default, for none), and protocol.compression.level,
+ * from 1, the fastest, to 9.
+ */
+final class ValueCompressor {
+
+    static final int THRESHOLD = Integer.getInteger("protocol.compression.threshold", 0);
+    static final int LEVEL = Integer.getInteger("protocol.compression.level", Deflater.BEST_SPEED);
+
+    private final int threshold;
+    private final ServerStats stats;
+    // as many as can be in use at once without waiting for a core
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final int level;
+    private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * @param threshold -- the shortest value to compress, at least 1
+     * @param level -- the Deflater level, from 1 to 9
+     * @param stats -- where the bytes compressed and the time taken are counted
+     */
+    ValueCompressor(int threshold, int level, ServerStats stats) {
+        if (threshold < 1 || level < 1 || level > 9) {
+            throw new IllegalArgumentException("The threshold must be positive and the level from 1 to 9");
+        }
+        this.threshold = threshold;
+        this.stats = stats;
+        this.level = level;
+    }
+
+    /**
+     * @param bytes -- the value, which must not be changed afterwards
+     * @return -- the value to store, compressed if it is long enough and compresses well
+     */
+    StoredValue compress(byte[] bytes) {
+        if (bytes.length < threshold) {
+            return StoredValue.of(bytes);
+        }
+        long startNanos = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        // stop as soon as the result would be too large to be worth keeping
+        byte[] compressed = new byte[bytes.length - bytes.length / 8];
+        int length = 0;
+        boolean kept;
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            kept = deflater.finished();
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        stats.valueCompressed(bytes.length, kept ? length : bytes.length, System.nanoTime() - startNanos);
+        if (!kept) {
+            return StoredValue.of(bytes);
+        }
+        return StoredValue.ofCompressed(Arrays.copyOf(compressed, length), bytes.length, this);
+    }
+
+    /**
+     * @param compressed -- a value compressed by this compressor
+     * @param length -- the length of the value before compression
+     * @return -- the value as it was stored
+     * @throws IOException -- if the compressed bytes are corrupt
+     */
+    byte[] inflate(byte[] compressed, int length) throws IOException {
+        long startNanos = System.nanoTime();
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        byte[] bytes = new byte[length];
+        int n = 0;
+        try {
+            inflater.setInput(compressed);
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(bytes, n, length - n);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed value", e);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+        if (n != length) {
+            throw new IOException("Compressed value inflated to " + n + " bytes, not " + length);
+        }
+        stats.valueInflated(System.nanoTime() - startNanos);
+        return bytes;
+    }
+}
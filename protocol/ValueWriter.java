@@ -0,0 +1,101 @@
+package protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Collects a value which arrives in pieces, such as the chunks of a
+ * PUTC, and turns it into a StoredValue.
+ *
+ * The value is kept on the heap until it grows past FILE_THRESHOLD
+ * bytes. From then on it is written to a file of its own in FILE_DIR
+ * and never held in memory, however large it gets.
+ *
+ * The threshold and directory are set with the system properties
+ * protocol.values.fileThreshold (bytes, default 1048576) and
+ * protocol.values.dir (default java.io.tmpdir). Files are opened with
+ * DELETE_ON_CLOSE, so none outlive the server.
+ */
+final class ValueWriter extends OutputStream {
+
+    static final long FILE_THRESHOLD = Long.getLong("protocol.values.fileThreshold", 1024 * 1024);
+    static final Path FILE_DIR = Paths.get(System.getProperty("protocol.values.dir",
+        System.getProperty("java.io.tmpdir")));
+
+    private ByteArrayOutputStream heap = new ByteArrayOutputStream();
+    private FileChannel file;
+    private long length;
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (file == null && length + len > FILE_THRESHOLD) {
+            spill();
+        }
+        if (file == null) {
+            heap.write(b, off, len);
+        } else {
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining()) {
+                file.write(src);
+            }
+        }
+        length += len;
+    }
+
+    /**
+     * @return -- the bytes written so far
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * @return -- the value written, which now owns the file if there is one
+     */
+    StoredValue finish() {
+        StoredValue value = file == null ? StoredValue.of(heap.toByteArray()) : StoredValue.ofFile(file, length);
+        heap = null;
+        file = null;
+        return value;
+    }
+
+    /**
+     * Throws away what has been written, deleting the file if there is one.
+     */
+    @Override
+    public void close() {
+        heap = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.warn("Could not close value file: {}", e.getMessage());
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * Moves the value written so far from the heap into a new file.
+     */
+    private void spill() throws IOException {
+        Path path = Files.createTempFile(FILE_DIR, "value", ".bin");
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.DELETE_ON_CLOSE);
+        ByteBuffer src = ByteBuffer.wrap(heap.toByteArray());
+        while (src.hasRemaining()) {
+            file.write(src);
+        }
+        heap = null;
+    }
+}
@@ -0,0 +1,240 @@
+package protocol;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of a whole session's traffic, for clients which
+ * connect with CONNECT+DEFLATE clientID.
+ *
+ * Once the server has answered CONNECT: OK, uncompressed, everything
+ * after it in both directions is a single deflate stream, without a
+ * zlib header. Each side ends every batch it sends with a sync flush,
+ * so the other side can inflate all of it without waiting for more, and
+ * otherwise keeps the compressor's history for the whole session, so a
+ * value resembling one sent before costs little even if it is short.
+ *
+ * The server compresses at protocol.compression.level, 1 by default,
+ * see ValueCompressor. The bytes before and after compression and the
+ * time spent compressing and inflating are counted in ServerStats.
+ */
+final class WireCompression {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private WireCompression() {
+    }
+
+    /**
+     * Passes bytes straight through until start is called, and deflates
+     * them from then on. Each flush ends with a sync flush of the
+     * compressor before flushing the stream underneath.
+     */
+    static final class Output extends OutputStream {
+        private final OutputStream out;
+        private final int level;
+        private final ServerStats stats;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private Deflater deflater;
+        private boolean closed;
+        // counted since the last flush, to record them once per flush
+        private long rawBytes;
+        private long compressedBytes;
+        private long nanos;
+
+        /**
+         * @param out -- where the compressed bytes are written
+         * @param level -- the Deflater level, from 1 to 9
+         * @param stats -- where the bytes and time are counted, or null
+         */
+        Output(OutputStream out, int level, ServerStats stats) {
+            this.out = out;
+            this.level = level;
+            this.stats = stats;
+        }
+
+        /**
+         * Compresses everything written from now on.
+         */
+        void start() {
+            deflater = new Deflater(level, true);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (deflater == null) {
+                out.write(b, off, len);
+                return;
+            }
+            if (len == 0) {
+                return;
+            }
+            rawBytes += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (deflater != null) {
+                while (deflate(Deflater.SYNC_FLUSH) == buf.length) {
+                    // the buffer was full, so there may be more
+                }
+                if (stats != null && (rawBytes > 0 || compressedBytes > 0)) {
+                    stats.wireCompressed(rawBytes, compressedBytes, nanos);
+                }
+                rawBytes = 0;
+                compressedBytes = 0;
+                nanos = 0;
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flush();
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                out.close();
+            }
+        }
+
+        private int deflate(int flush) throws IOException {
+            long startNanos = System.nanoTime();
+            int n = deflater.deflate(buf, 0, buf.length, flush);
+            nanos += System.nanoTime() - startNanos;
+            if (n > 0) {
+                compressedBytes += n;
+                out.write(buf, 0, n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Inflates a stream written by Output once started. Unlike
+     * InflaterInputStream, available() is exact: it inflates whatever
+     * input has already arrived and reports how much that came to, so a
+     * reader can tell whether a read would block. Before blocking on the
+     * stream underneath, the given Flushable is flushed.
+     */
+    static final class Input extends InputStream {
+        private final InputStream in;
+        private final Flushable beforeBlocking;
+        private final ServerStats stats;
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private final byte[] single = new byte[1];
+        private int position;
+        private int limit;
+
+        /**
+         * @param in -- the compressed stream
+         * @param pending -- compressed bytes already read from in, or null
+         * @param beforeBlocking -- flushed whenever a read is about to wait for input, or null
+         * @param stats -- where the bytes and time are counted, or null
+         */
+        Input(InputStream in, byte[] pending, Flushable beforeBlocking, ServerStats stats) {
+            this.in = in;
+            this.beforeBlocking = beforeBlocking;
+            this.stats = stats;
+            if (pending != null && pending.length > 0) {
+                inflater.setInput(pending);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (!inflateMore(true)) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(output, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            while (position == limit && inflateMore(false)) {
+                // inflate until there is output or no input left
+            }
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        /**
+         * Inflates the next piece of output, reading more input first if
+         * the inflater needs it.
+         * @param block -- true to wait for input, false to give up if none has arrived
+         * @return -- false at the end of the stream, or if there was no input and block was false
+         */
+        private boolean inflateMore(boolean block) throws IOException {
+            if (inflater.finished()) {
+                return false;
+            }
+            int read = 0;
+            if (inflater.needsInput()) {
+                if (in.available() == 0) {
+                    if (!block) {
+                        return false;
+                    }
+                    if (beforeBlocking != null) {
+                        beforeBlocking.flush();
+                    }
+                }
+                read = in.read(input, 0, input.length);
+                if (read == -1) {
+                    return false;
+                }
+                inflater.setInput(input, 0, read);
+            }
+            long startNanos = System.nanoTime();
+            try {
+                limit = inflater.inflate(output);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed input", e);
+            }
+            position = 0;
+            if (limit == 0 && inflater.needsDictionary()) {
+                throw new IOException("Compressed input needs a dictionary");
+            }
+            if (stats != null) {
+                stats.wireCompressed(limit, read, System.nanoTime() - startNanos);
+            }
+            return true;
+        }
+    }
+}